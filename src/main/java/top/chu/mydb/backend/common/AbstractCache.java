@@ -79,23 +79,33 @@ public abstract class AbstractCache<T> {
 
     /**
      * 释放一个缓存
+     * 引用归零时在锁外写回，写回期间该资源标记为正在获取，对它的get会等待写回完成后重新获取
      */
     protected void release(long key) {
+        T obj;
         lock.lock();
         try {
             int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            } else {
+            if (ref > 0) {
                 references.put(key, ref);
+                return;
             }
+            obj = cache.get(key);
+            references.remove(key);
+            getting.put(key, true);
         } finally {
             lock.unlock();
         }
+
+        try {
+            releaseForCache(obj);
+        } finally {
+            lock.lock();
+            cache.remove(key);
+            getting.remove(key);
+            count--;
+            lock.unlock();
+        }
     }
 
     /**
@@ -122,7 +132,7 @@ public abstract class AbstractCache<T> {
     protected abstract T getForCache(long key) throws Exception;
 
     /**
-     * 当资源被驱逐时的写回行为
+     * 当资源被驱逐时的写回行为，引用归零驱逐时在缓存的锁外调用
      */
     protected abstract void releaseForCache(T obj);
 
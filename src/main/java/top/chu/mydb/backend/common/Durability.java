@@ -0,0 +1,62 @@
+package top.chu.mydb.backend.common;
+
+/**
+ * 持久化策略
+ * SYNC     每次写入都立即刷盘
+ * GROUP    每次写入都等待刷盘，并发的写入合并为一次刷盘
+ * PERIODIC 写入不等待刷盘，后台每隔interval毫秒按 日志 -> XID文件 -> 数据文件 的顺序统一刷盘
+ * OS       从不主动刷盘，何时落盘由操作系统决定
+ */
+public class Durability {
+    public enum Mode {
+        SYNC, GROUP, PERIODIC, OS
+    }
+
+    public static final Durability SYNC = new Durability(Mode.SYNC, 0);
+    public static final Durability GROUP = new Durability(Mode.GROUP, 0);
+    public static final Durability OS = new Durability(Mode.OS, 0);
+
+    public static Durability periodic(long interval) {
+        return new Durability(Mode.PERIODIC, interval);
+    }
+
+    private Mode mode;
+    private long interval;
+
+    private Durability(Mode mode, long interval) {
+        this.mode = mode;
+        this.interval = interval;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public long interval() {
+        return interval;
+    }
+
+    // 提交是否等待刷盘完成
+    public boolean waitsForSync() {
+        return mode == Mode.SYNC || mode == Mode.GROUP;
+    }
+
+    // 崩溃时可能丢失的已提交事务的时间窗口，单位毫秒，-1表示由操作系统决定
+    public long exposureWindow() {
+        switch (mode) {
+            case SYNC:
+            case GROUP:
+                return 0;
+            case PERIODIC:
+                return interval;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        long window = exposureWindow();
+        return mode + (window < 0 ? " (exposure: OS dependent)" : " (exposure: " + window + "ms)");
+    }
+}
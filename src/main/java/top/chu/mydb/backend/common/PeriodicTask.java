@@ -0,0 +1,76 @@
+package top.chu.mydb.backend.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台线程，每隔interval毫秒执行一次task
+ * 停止时只唤醒等待而不中断线程，避免打断正在进行的文件读写
+ */
+public class PeriodicTask implements Runnable {
+    private String name;
+    private long interval;
+    private Runnable task;
+    private boolean running;
+    private Thread thread;
+    private Lock lock;
+    private Condition wakeup;
+
+    public PeriodicTask(String name, long interval, Runnable task) {
+        this.name = name;
+        this.interval = interval;
+        this.task = task;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        lock.lock();
+        try {
+            running = false;
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (thread == null) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(interval);
+                while (running && nanos > 0) {
+                    nanos = wakeup.awaitNanos(nanos);
+                }
+                if (!running) return;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            task.run();
+        }
+    }
+}
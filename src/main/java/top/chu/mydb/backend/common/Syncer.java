@@ -0,0 +1,77 @@
+package top.chu.mydb.backend.common;
+
+import top.chu.mydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 合并并发的刷盘请求
+ * 写入者在写入完成后通过 written() 登记一个递增的序号，再调用 sync() 等待该序号之前的写入落盘
+ * 同一时刻只有一个线程在刷盘，一次刷盘覆盖开始前已登记的所有写入，等待中的线程醒来后多半无需再刷
+ */
+public class Syncer {
+    public interface Force {
+        void force() throws IOException;
+    }
+
+    private Force force;
+    private Lock syncLock;
+    private AtomicLong written; // 已登记的最大序号
+    private AtomicLong synced; // 已落盘的最大序号
+
+    public Syncer(Force force) {
+        this(force, 0);
+    }
+
+    // durable 之前的写入视为已经落盘
+    public Syncer(Force force, long durable) {
+        this.force = force;
+        this.syncLock = new ReentrantLock();
+        this.written = new AtomicLong(durable);
+        this.synced = new AtomicLong(durable);
+    }
+
+    // 登记一次写入，返回其序号
+    public long written() {
+        return written.incrementAndGet();
+    }
+
+    // 以调用者给定的递增序号登记一次写入
+    public void written(long ticket) {
+        written.accumulateAndGet(ticket, Math::max);
+    }
+
+    // 保证序号不大于ticket的写入都已落盘
+    public void sync(long ticket) {
+        if (synced.get() >= ticket) return;
+        syncLock.lock();
+        try {
+            if (synced.get() >= ticket) return;
+            long target = written.get();
+            force.force();
+            synced.accumulateAndGet(target, Math::max);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // 不与其他写入者合并，立即刷盘
+    public void force(long ticket) {
+        try {
+            force.force();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        synced.accumulateAndGet(ticket, Math::max);
+    }
+
+    // 所有已登记的写入落盘
+    public void syncAll() {
+        sync(written.get());
+    }
+}
@@ -1,38 +1,71 @@
 package top.chu.mydb.backend.dm;
 
+import top.chu.mydb.backend.common.Durability;
 import top.chu.mydb.backend.dm.dataItem.DataItem;
 import top.chu.mydb.backend.dm.dataItem.DataItemImpl;
 import top.chu.mydb.backend.dm.logger.Logger;
+import top.chu.mydb.backend.dm.logger.LoggerImpl;
 import top.chu.mydb.backend.dm.page.PageOne;
 import top.chu.mydb.backend.dm.pageCache.PageCache;
 import top.chu.mydb.backend.dm.pageCache.PageCacheImpl;
 import top.chu.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
+    public static final int READ_BATCH_PAGES = 16; // readMany每次最多同时固定的页数
+
     DataItem read(long uid) throws Exception;
+    DataItem[] readMany(long[] uids) throws Exception; // 按页批量读取，结果与uids一一对应，不存在的为null
+    int readBatchPages(); // readMany每次同时固定的页数，不超过缓存容量的一半
     long insert(long xid, byte[] data) throws Exception;
+    long insertInternal(long xid, byte[] data) throws Exception; // 内部数据项（如索引节点），可以读取，但不会被validItems和扫描列出
+    int pageCount(); // 数据页的页号为 2..pageCount
+    List<Long> validItems(int pgno) throws Exception; // 页内所有合法的非内部数据项的UID
+    PageScanner scan(); // 按页号顺序遍历所有数据页，预读之后的页
+    PageScanner scan(int firstPgno, int lastPgno); // 只遍历[firstPgno, lastPgno]中的数据页，不预读
+    void free(long uid) throws Exception; // 回收数据项的空间，调用者保证之后不会再读取它
+    void truncate(long uid, int length) throws Exception; // 只保留数据项的前length字节，其余空间回收
+    void reclaimLog(long redoLsn); // 删除redoLsn之前且不再被活跃事务需要的日志段
+    void checkpoint(); // 立即做一次检查点
+    void commit(long xid, Durability durability); // 写入提交日志，按持久化策略等待刷盘
+    void abort(long xid); // 写入取消日志，不等待刷盘
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
-        Logger lg = Logger.create(path);
+        return create(path, mem, tm, tm.durability());
+    }
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+    public static DataManager create(String path, long mem, TransactionManager tm, Durability durability) {
+        PageCache pc = PageCache.create(path, mem, durability);
+        Logger lg = Logger.create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE, durability);
+        pc.setLogger(lg);
+
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, durability);
         dm.initPageOne();
+        dm.startBackground();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
-        Logger lg = Logger.open(path);
+        return open(path, mem, tm, tm.durability());
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, Durability durability) {
+        PageCache pc = PageCache.open(path, mem, durability);
+        Logger lg = Logger.open(path, durability);
+        pc.setLogger(lg);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, durability);
         if (!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, PageOne.getCheckpoint(dm.pageOne));
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        // 此时所有页都已落盘，新的检查点之前的日志都可以回收
+        dm.checkpoint();
+        dm.startBackground();
 
         return dm;
     }
@@ -1,6 +1,8 @@
 package top.chu.mydb.backend.dm;
 
 import top.chu.mydb.backend.common.AbstractCache;
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.common.PeriodicTask;
 import top.chu.mydb.backend.dm.dataItem.DataItem;
 import top.chu.mydb.backend.dm.dataItem.DataItemImpl;
 import top.chu.mydb.backend.dm.logger.Logger;
@@ -11,24 +13,97 @@ import top.chu.mydb.backend.dm.pageCache.PageCache;
 import top.chu.mydb.backend.dm.pageIndex.PageIndex;
 import top.chu.mydb.backend.dm.pageIndex.PageInfo;
 import top.chu.mydb.backend.tm.TransactionManager;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
 import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.backend.utils.Parser;
 import top.chu.mydb.backend.utils.Types;
 import top.chu.mydb.common.Error;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    static final long CHECKPOINT_INTERVAL = 30 * 1000;
+    static final int LOADER_THREADS = 4;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    Map<Long, Long> firstLsn; // 事务写下的第一条日志的LSN
+    PeriodicTask checkpointer;
+    PeriodicTask flusher; // PERIODIC 模式下定期刷盘
+    Lock ckptLock;
+    ExecutorService loader; // readMany和扫描并行加载页面
+    int readBatchPages;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, Durability durability) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.checkpointer = new PeriodicTask("checkpointer", CHECKPOINT_INTERVAL, this::checkpoint);
+        if (durability.mode() == Durability.Mode.PERIODIC) {
+            this.flusher = new PeriodicTask("flusher", durability.interval(), this::flush);
+        }
+        this.ckptLock = new ReentrantLock();
+        // 常驻的第一页之外，留一半缓存给其他读写和版本链上的页
+        this.readBatchPages = Math.max(1, Math.min(READ_BATCH_PAGES, (pc.capacity() - 1) / 2));
+        this.loader = Executors.newFixedThreadPool(LOADER_THREADS, r -> {
+            Thread t = new Thread(r, "page-loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void startBackground() {
+        checkpointer.start();
+        if (flusher != null) {
+            flusher.start();
+        }
+    }
+
+    // 先刷日志，再写出直接通过TM提交的事务状态，最后刷数据页
+    private void flush() {
+        logger.flush();
+        tm.flush();
+        pc.sync();
+    }
+
+    /**
+     * 事务的提交以日志中的提交记录为准，一次提交只需要一次（可合并的）日志刷盘
+     * 没有写过日志的事务没有修改任何数据，不需要提交记录，崩溃后其状态为active也不影响可见性
+     */
+    @Override
+    public void commit(long xid, Durability durability) {
+        if (firstLsn.containsKey(xid)) {
+            logger.log(Recover.commitLog(xid), durability);
+        }
+        tm.commitLazily(xid);
+    }
+
+    // 取消记录丢失时恢复会撤销该事务，效果相同，因此不等待刷盘
+    @Override
+    public void abort(long xid) {
+        if (firstLsn.containsKey(xid)) {
+            logger.log(Recover.abortLog(xid), Durability.OS);
+        }
+        tm.abortLazily(xid);
     }
 
     @Override
@@ -41,60 +116,341 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    // 按UID排序后每次取readBatchPages个页，并行加载并固定这些页，
+    // 其中的数据项从已固定的页中解析，不再各自读盘，处理完后解除固定
+    @Override
+    public DataItem[] readMany(long[] uids) throws Exception {
+        Integer[] order = new Integer[uids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(uids[a], uids[b]));
+
+        DataItem[] result = new DataItem[uids.length];
+        try {
+            int start = 0;
+            while (start < order.length) {
+                List<Integer> pgnos = new ArrayList<>();
+                int end = start;
+                for (; end < order.length; end++) {
+                    int pgno = Types.uidToPgno(uids[order[end]]);
+                    if (pgnos.isEmpty() || pgnos.get(pgnos.size() - 1) != pgno) {
+                        if (pgnos.size() == readBatchPages) break;
+                        pgnos.add(pgno);
+                    }
+                }
+                List<Page> pinned = pinPages(pgnos);
+                try {
+                    for (int i = start; i < end; i++) {
+                        result[order[i]] = read(uids[order[i]]);
+                    }
+                } finally {
+                    for (Page pg : pinned) {
+                        pg.release();
+                    }
+                }
+                start = end;
+            }
+        } catch (Exception e) {
+            for (DataItem di : result) {
+                if (di != null) {
+                    di.release();
+                }
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    @Override
+    public int readBatchPages() {
+        return readBatchPages;
+    }
+
+    private List<Page> pinPages(List<Integer> pgnos) throws Exception {
+        List<Page> pinned = new ArrayList<>();
+        if (pgnos.size() == 1) {
+            pinned.add(pc.getPage(pgnos.get(0)));
+            return pinned;
+        }
+        List<Future<Page>> loads = new ArrayList<>();
+        for (int pgno : pgnos) {
+            loads.add(loader.submit(() -> pc.getPage(pgno)));
+        }
+        Exception err = null;
+        for (Future<Page> f : loads) {
+            try {
+                pinned.add(f.get());
+            } catch (ExecutionException e) {
+                err = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        if (err != null) {
+            for (Page pg : pinned) {
+                pg.release();
+            }
+            throw err;
+        }
+        return pinned;
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        byte[] raw = DataItem.wrapDataItemRaw(data);
+        return insertRaw(xid, DataItem.wrapDataItemRaw(data));
+    }
+
+    @Override
+    public long insertInternal(long xid, byte[] data) throws Exception {
+        return insertRaw(xid, DataItem.wrapInternalDataItemRaw(data));
+    }
+
+    private long insertRaw(long xid, byte[] raw) throws Exception {
         if (raw.length > PageX.MAX_FREE_SPACE) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
         for (int i = 0; i < 5; i++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
+            PageInfo pi = pIndex.select(raw.length);
+            if (pi == null) {
                 int newPgno = pc.newPage(PageX.initRaw());
                 pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                continue;
+            }
+
+            Page pg;
+            try {
+                pg = pc.getPage(pi.pgno);
+            } catch (Exception e) {
+                pIndex.add(pi.pgno, pi.freeSpace);
+                throw e;
+            }
+            short offset;
+            int freeSpace;
+            pg.lock();
+            try {
+                // 索引中的空闲空间可能已经过时，以页内的实际情况为准
+                offset = PageX.allocate(pg, raw.length);
+                if (offset >= 0) {
+                    byte[] placed = PageX.placement(pg, offset, raw);
+                    long lsn = logPage(xid, pg, Recover.insertLog(xid, pg, offset, placed));
+                    PageX.insert(pg, placed, offset);
+                    PageX.setPageLSN(pg, lsn);
+                }
+                freeSpace = PageX.getFreeSpace(pg);
+            } finally {
+                pg.unlock();
+            }
+            pIndex.add(pi.pgno, freeSpace);
+            pg.release();
+            if (offset >= 0) {
+                return Types.addressToUid(pi.pgno, offset);
             }
         }
-        if (pi == null) {
-            throw Error.DatabaseBusyException;
+        throw Error.DatabaseBusyException;
+    }
+
+    @Override
+    public int pageCount() {
+        return pc.getPageNumber();
+    }
+
+    @Override
+    public List<Long> validItems(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            return validItems(pg);
+        } finally {
+            pg.release();
         }
+    }
 
-        Page pg = null;
-        int freeSpace = 0;
+    // 不含内部数据项
+    static List<Long> validItems(Page pg) {
+        List<Long> uids = new ArrayList<>();
+        pg.lock();
         try {
-            pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            byte[] raw = pg.getData();
+            for (short offset : PageX.offsets(pg)) {
+                if (raw[offset] == 0) {
+                    uids.add(Types.addressToUid(pg.getPageNumber(), offset));
+                }
+            }
+        } finally {
+            pg.unlock();
+        }
+        return uids;
+    }
 
-            short offset = PageX.insert(pg, raw);
+    @Override
+    public PageScanner scan() {
+        return new PageScanner(this);
+    }
 
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+    @Override
+    public PageScanner scan(int firstPgno, int lastPgno) {
+        return new PageScanner(this, firstPgno, lastPgno, 0);
+    }
+
+    @Override
+    public void free(long uid) throws Exception {
+        Page pg = pc.getPage(Types.uidToPgno(uid));
+        short offset = Types.uidToOffset(uid);
+        int freeSpace;
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            if (raw[offset] == PageX.ITEM_FREE) {
+                return;
+            }
+            // 与前后相邻的空洞合并成一个
+            int start = PageX.precedingHole(pg, offset);
+            int length = PageX.coalesce(pg, start, offset - start + PageX.itemLength(raw, offset));
+            byte[] oldRaw = Arrays.copyOfRange(raw, start, start + PageX.ITEM_HEADER);
+            byte[] newRaw = new byte[PageX.ITEM_HEADER];
+            PageX.setFreeHeader(newRaw, 0, length);
+            writePage(pg, start, oldRaw, newRaw);
+            freeSpace = PageX.getFreeSpace(pg);
         } finally {
-            if (pi != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+            pg.unlock();
+            pg.release();
+        }
+        pIndex.add(pg.getPageNumber(), freeSpace);
+    }
+
+    @Override
+    public void truncate(long uid, int length) throws Exception {
+        Page pg = pc.getPage(Types.uidToPgno(uid));
+        short offset = Types.uidToOffset(uid);
+        int freeSpace;
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            int rest = PageX.itemLength(raw, offset) - PageX.ITEM_HEADER - length;
+            if (raw[offset] == PageX.ITEM_FREE || rest < PageX.ITEM_HEADER) {
+                return;
             }
+            int holeAt = offset + PageX.ITEM_HEADER + length;
+            int hole = PageX.coalesce(pg, holeAt, rest);
+            // 一条日志覆盖从Size到空洞的头的部分
+            int from = offset + 1;
+            byte[] oldRaw = Arrays.copyOfRange(raw, from, holeAt + PageX.ITEM_HEADER);
+            byte[] newRaw = oldRaw.clone();
+            System.arraycopy(Parser.short2Byte((short) length), 0, newRaw, 0, 2);
+            PageX.setFreeHeader(newRaw, holeAt - from, hole);
+            writePage(pg, from, oldRaw, newRaw);
+            freeSpace = PageX.getFreeSpace(pg);
+        } finally {
+            pg.unlock();
+            pg.release();
         }
+        pIndex.add(pg.getPageNumber(), freeSpace);
+    }
+
+    // 以SUPER_XID记录并写入页内的一段修改，调用者持有页锁
+    private void writePage(Page pg, int offset, byte[] oldRaw, byte[] newRaw) {
+        long uid = Types.addressToUid(pg.getPageNumber(), (short) offset);
+        long lsn = logPage(TransactionManagerImpl.SUPER_XID, pg, Recover.updateLog(TransactionManagerImpl.SUPER_XID, uid, oldRaw, newRaw));
+        PageX.recoverUpdate(pg, newRaw, (short) offset);
+        PageX.setPageLSN(pg, lsn);
     }
 
     @Override
     public void close() {
+        checkpointer.stop();
+        if (flusher != null) {
+            flusher.stop();
+        }
+        loader.shutdown();
         super.close();
-        logger.close();
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        // 写回数据页时还需要刷日志，日志最后关闭
         pc.close();
+        logger.close();
+        // 日志中的提交记录不再可用之前写出事务状态
+        tm.flush();
     }
 
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        long lsn = logPage(xid, di.page(), log);
+        PageX.setPageLSN(di.page(), lsn);
+    }
+
+    // 调用者持有页锁，先登记脏页再写日志，保证检查点得到的重做起点不会越过这条日志
+    private long logPage(long xid, Page pg, byte[] log) {
+        pc.markDirty(pg.getPageNumber(), logger.endLsn());
+        long lsn = logger.log(log);
+        if (xid != TransactionManagerImpl.SUPER_XID) {
+            firstLsn.putIfAbsent(xid, lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * 模糊检查点，不阻塞写入
+     * 先记下开始时的日志位置，逐页刷出当前的脏页，再把剩余的脏页表和活跃事务写入检查点日志
+     * 恢复时从 min(开始位置, 脏页的recLSN) 开始重做，该位置之前的日志段可以回收
+     */
+    @Override
+    public void checkpoint() {
+        ckptLock.lock();
+        try {
+            long beginLsn = logger.endLsn();
+            for (int pgno : pc.dirtyPages().keySet()) {
+                Page pg;
+                try {
+                    pg = pc.getPage(pgno);
+                } catch (Exception e) {
+                    // 缓存已满，留给下一次检查点
+                    continue;
+                }
+                pc.flushPage(pg);
+                pg.release();
+            }
+            // 此前被换出的页可能还未刷盘
+            pc.sync();
+
+            Map<Integer, Long> dirty = pc.dirtyPages();
+            Map<Long, Long> active = new HashMap<>();
+            for (Map.Entry<Long, Long> e : firstLsn.entrySet()) {
+                if (tm.isActive(e.getKey())) {
+                    active.put(e.getKey(), e.getValue());
+                }
+            }
+            // 不在活跃集合中的事务的提交和取消记录可能不会再被恢复扫描到，它们的状态须先落盘
+            // 与flush()相同，状态落盘前它的日志须先落盘
+            logger.flush();
+            tm.flush();
+            long ckptLsn = logger.log(Recover.checkpointLog(beginLsn, dirty, active));
+            logger.flush(ckptLsn);
+            PageOne.setCheckpoint(pageOne, ckptLsn);
+            pc.flushPage(pageOne);
+
+            long redoLsn = beginLsn;
+            for (long recLsn : dirty.values()) {
+                redoLsn = Math.min(redoLsn, recLsn);
+            }
+            reclaimLog(redoLsn);
+        } finally {
+            ckptLock.unlock();
+        }
+    }
+
+    @Override
+    public void reclaimLog(long redoLsn) {
+        long lsn = redoLsn;
+        Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            if (!tm.isActive(e.getKey())) {
+                it.remove();
+            } else if (e.getValue() < lsn) {
+                lsn = e.getValue();
+            }
+        }
+        logger.purge(lsn);
     }
 
     public void releaseDataItem(DataItem di) {
@@ -103,11 +459,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int) (uid & ((1L << 32) - 1));
-        Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        Page pg = pc.getPage(Types.uidToPgno(uid));
+        return DataItem.parseDataItem(pg, Types.uidToOffset(uid), this);
     }
 
     @Override
@@ -134,6 +487,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         } catch (Exception e) {
             Panic.panic(e);
         }
+        if (!PageOne.checkFormat(pageOne)) {
+            Panic.panic(Error.BadDbFileException);
+        }
         return PageOne.checkVc(pageOne);
     }
 
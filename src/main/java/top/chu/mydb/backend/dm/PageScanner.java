@@ -0,0 +1,109 @@
+package top.chu.mydb.backend.dm;
+
+import top.chu.mydb.backend.dm.page.Page;
+import top.chu.mydb.backend.dm.pageCache.PageCache;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 按页号顺序遍历数据页
+ * 当前页之后最多READ_AHEAD页交给后台线程预先加载并固定，处理当前页时下一批页已在读取
+ * 连同当前页固定的页数不超过缓存容量的一半，缓存太小时不预读
+ * 当前页在前进到下一页或关闭前保持固定，其中数据项的读取都不会再读盘
+ * 遍历期间新增的页也会被访问到
+ * 指定了页号范围时只遍历该范围，不预读，页在调用线程中读取，供多个线程分段并行遍历
+ */
+public class PageScanner implements AutoCloseable {
+    static final int READ_AHEAD = 8;
+    private static final int FIRST_PGNO = 2;
+
+    private PageCache pc;
+    private ExecutorService loader;
+    private ArrayDeque<Future<Page>> ahead; // 已提交预读的页，按页号顺序
+    private int nextPgno; // 下一个要读取的页号
+    private int lastPgno; // 遍历的最后一页
+    private int readAhead;
+    private Page current;
+
+    PageScanner(DataManagerImpl dm) {
+        this(dm, FIRST_PGNO, Integer.MAX_VALUE, Math.min(READ_AHEAD, dm.readBatchPages - 1));
+    }
+
+    PageScanner(DataManagerImpl dm, int firstPgno, int lastPgno, int readAhead) {
+        this.pc = dm.pc;
+        this.loader = dm.loader;
+        this.ahead = new ArrayDeque<>();
+        this.nextPgno = Math.max(firstPgno, FIRST_PGNO);
+        this.lastPgno = lastPgno;
+        this.readAhead = readAhead;
+    }
+
+    // 前进到下一页，没有更多的页时返回false
+    public boolean next() throws Exception {
+        releaseCurrent();
+        if (readAhead == 0) {
+            if (nextPgno > Math.min(lastPgno, pc.getPageNumber())) {
+                return false;
+            }
+            current = pc.getPage(nextPgno++);
+            return true;
+        }
+        readAhead();
+        Future<Page> f = ahead.pollFirst();
+        if (f == null) {
+            return false;
+        }
+        current = await(f);
+        readAhead();
+        return true;
+    }
+
+    public int pgno() {
+        return current.getPageNumber();
+    }
+
+    // 当前页中所有合法数据项的UID
+    public List<Long> items() {
+        return DataManagerImpl.validItems(current);
+    }
+
+    private void readAhead() {
+        int limit = Math.min(lastPgno, pc.getPageNumber());
+        while (ahead.size() < readAhead && nextPgno <= limit) {
+            int pgno = nextPgno++;
+            ahead.addLast(loader.submit(() -> pc.getPage(pgno)));
+        }
+    }
+
+    private Page await(Future<Page> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseCurrent();
+        Future<Page> f;
+        while ((f = ahead.pollFirst()) != null) {
+            try {
+                await(f).release();
+            } catch (Exception ignored) {
+                // 预读失败的页没有被固定
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package top.chu.mydb.backend.dm;
 import com.google.common.primitives.Bytes;
 import top.chu.mydb.backend.common.SubArray;
 import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.dm.logger.LogCursor;
 import top.chu.mydb.backend.dm.logger.Logger;
 import top.chu.mydb.backend.dm.page.Page;
 import top.chu.mydb.backend.dm.page.PageX;
@@ -10,128 +11,249 @@ import top.chu.mydb.backend.dm.pageCache.PageCache;
 import top.chu.mydb.backend.tm.TransactionManager;
 import top.chu.mydb.backend.utils.Panic;
 import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * 恢复分为三步：
+ * 1. 分析：从检查点确定的起点用 LogCursor 扫描一遍日志，每条日志只解析一次，日志数据不做拷贝，
+ *    先以日志中的提交和取消记录更新事务状态，日志中没有结束记录的事务以XID文件为准，
+ *    再按页号归集需要重做的日志，按XID归集需要撤销的日志，每个XID只查询一次事务状态
+ * 2. 重做：按页号将页划分给多个线程并行重做，同一页的日志由同一线程按LSN顺序重做
+ * 3. 撤销：对所有活跃事务的日志倒序撤销
+ */
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
-    private static final int REDO = 0;
-    private static final int UNDO = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_COMMIT = 3;
+    private static final byte LOG_TYPE_ABORT = 4;
 
-    static class InsertLogInfo {
+    static class LogInfo {
+        byte type;
+        long lsn;
         long xid;
         int pgno;
         short offset;
-        byte[] raw;
+        ByteBuffer raw; // 插入的数据或更新后的数据，为日志的切片
+        ByteBuffer oldRaw; // 更新前的数据，仅更新日志有
     }
-    static class UpdateLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+    static class CheckpointLogInfo {
+        long beginLsn;
+        Map<Integer, Long> dirtyPages;
+        Map<Long, Long> activeTransactions;
     }
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+
+    /**
+     * ckptLsn 为最近一次检查点日志的LSN，为0时从日志开头恢复
+     * 重做从 min(检查点开始位置, 脏页recLSN) 开始，PageLSN不小于日志LSN的页跳过重做
+     * 撤销需要检查点时活跃事务的全部日志，因此扫描从重做起点和这些事务的第一条日志中较早者开始
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long ckptLsn) {
         System.out.println("Recovering...");
 
-        lg.rewind();
-        int maxPgno = 0;
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            int pgno;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                pgno = xi.pgno;
+        long redoLsn = 0;
+        long startLsn = 0;
+        if (ckptLsn != 0) {
+            LogCursor cursor = lg.cursor(ckptLsn);
+            if (!cursor.next() || cursor.lsn() != ckptLsn || !isCheckpointLog(cursor.data())) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            CheckpointLogInfo ci = parseCheckpointLog(cursor.data());
+            redoLsn = ci.beginLsn;
+            for (long recLsn : ci.dirtyPages.values()) {
+                redoLsn = Math.min(redoLsn, recLsn);
             }
-            if (pgno > maxPgno) {
-                maxPgno = pgno;
+            startLsn = redoLsn;
+            for (long firstLsn : ci.activeTransactions.values()) {
+                startLsn = Math.min(startLsn, firstLsn);
             }
+            System.out.println("Checkpoint at " + ckptLsn + ", redo from " + redoLsn + ".");
         }
+
+        Map<Integer, List<LogInfo>> redoLogs = new HashMap<>();
+        Map<Long, List<LogInfo>> undoLogs = new HashMap<>();
+        int maxPgno = analyze(tm, lg, startLsn, redoLsn, redoLogs, undoLogs);
         if (maxPgno == 0) {
             maxPgno = 1;
         }
+        // 日志只覆盖检查点之后的部分，日志中的最大页号不代表文件的真实页数，只能扩展不能截短
+        maxPgno = Math.max(maxPgno, pc.getPageNumber());
         pc.truncateByPgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTransactions(tm, lg, pc);
+        redoTransactions(pc, redoLogs);
         System.out.println("Redo Transactions Over.");
 
-        undoTransactions(tm, lg, pc);
+        undoTransactions(tm, pc, undoLogs);
         System.out.println("Undo Transactions Over");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
+    // 扫描一遍日志，返回日志中出现的最大页号
+    private static int analyze(TransactionManager tm, Logger lg, long startLsn, long redoLsn,
+                               Map<Integer, List<LogInfo>> redoLogs, Map<Long, List<LogInfo>> undoLogs) {
+        List<LogInfo> logs = new ArrayList<>();
+        Map<Long, Byte> ended = new HashMap<>();
+        LogCursor cursor = lg.cursor(startLsn);
+        int maxPgno = 0;
+        while (cursor.next()) {
+            ByteBuffer log = cursor.data();
+            byte type = log.get(OF_TYPE);
+            if (type == LOG_TYPE_CHECKPOINT) continue;
+            if (type == LOG_TYPE_COMMIT || type == LOG_TYPE_ABORT) {
+                ended.put(log.getLong(OF_XID), type);
+                continue;
+            }
+            LogInfo li = parseLog(log, cursor.lsn());
+            if (li.pgno > maxPgno) {
+                maxPgno = li.pgno;
+            }
+            logs.add(li);
+        }
+
+        // XID文件在检查点时才写出，以日志中的结束记录为准
+        for (Map.Entry<Long, Byte> e : ended.entrySet()) {
+            if (e.getValue() == LOG_TYPE_COMMIT) {
+                tm.commitLazily(e.getKey());
             } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, UNDO);
-                }
+                tm.abortLazily(e.getKey());
             }
         }
+
+        Map<Long, Boolean> active = new HashMap<>();
+        for (LogInfo li : logs) {
+            Boolean isActive = active.get(li.xid);
+            if (isActive == null) {
+                isActive = tm.isActive(li.xid);
+                active.put(li.xid, isActive);
+            }
+            if (isActive) {
+                undoLogs.computeIfAbsent(li.xid, k -> new ArrayList<>()).add(li);
+            } else if (li.lsn >= redoLsn) {
+                redoLogs.computeIfAbsent(li.pgno, k -> new ArrayList<>()).add(li);
+            }
+        }
+        return maxPgno;
     }
 
-    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        HashMap<Long, List<byte[]>> logCache = new HashMap<Long, List<byte[]>>();
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+    private static void redoTransactions(PageCache pc, Map<Integer, List<LogInfo>> redoLogs) {
+        if (redoLogs.isEmpty()) return;
+        int workers = Math.min(Runtime.getRuntime().availableProcessors(), redoLogs.size());
+        List<List<List<LogInfo>>> partitions = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map.Entry<Integer, List<LogInfo>> e : redoLogs.entrySet()) {
+            partitions.get(e.getKey() % workers).add(e.getValue());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (List<List<LogInfo>> pages : partitions) {
+                tasks.add(() -> {
+                    for (List<LogInfo> logs : pages) {
+                        redoPage(pc, logs);
                     }
-                    logCache.get(xid).add(log);
+                    return null;
+                });
+            }
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // 重做同一页上的日志，日志按LSN升序排列
+    private static void redoPage(PageCache pc, List<LogInfo> logs) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(logs.get(0).pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            for (LogInfo li : logs) {
+                if (PageX.getPageLSN(pg) >= li.lsn) {
+                    continue;
                 }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                if (li.type == LOG_TYPE_INSERT) {
+                    PageX.recoverInsert(pg, li.raw, li.offset);
+                } else {
+                    PageX.recoverUpdate(pg, li.raw, li.offset);
                 }
+                PageX.setPageLSN(pg, li.lsn);
             }
+        } finally {
+            pg.release();
         }
+    }
 
+    private static void undoTransactions(TransactionManager tm, PageCache pc, Map<Long, List<LogInfo>> undoLogs) {
         // 对所有的 active log进行倒序undo
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
+        for (Map.Entry<Long, List<LogInfo>> entry : undoLogs.entrySet()) {
+            List<LogInfo> logs = entry.getValue();
             for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if (isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+                undoLog(pc, logs.get(i));
+            }
+            // 恢复结束后的检查点会写出事务状态
+            tm.abortLazily(entry.getKey());
+        }
+    }
+
+    private static void undoLog(PageCache pc, LogInfo li) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if (li.type == LOG_TYPE_INSERT) {
+                byte[] raw = new byte[li.raw.remaining()];
+                li.raw.duplicate().get(raw);
+                DataItem.setDataItemRawInvalid(raw);
+                PageX.recoverInsert(pg, raw, li.offset);
+            } else {
+                PageX.recoverUpdate(pg, li.oldRaw, li.offset);
             }
-            tm.abort(entry.getKey());
+        } finally {
+            pg.release();
         }
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isInsertLog(ByteBuffer log) {
+        return log.get(OF_TYPE) == LOG_TYPE_INSERT;
+    }
+
+    private static boolean isCheckpointLog(ByteBuffer log) {
+        return log.get(OF_TYPE) == LOG_TYPE_CHECKPOINT;
+    }
+
+    // 取日志中 [from, to) 部分的切片
+    private static ByteBuffer slice(ByteBuffer log, int from, int to) {
+        ByteBuffer buf = log.duplicate();
+        buf.limit(to);
+        buf.position(from);
+        return buf.slice();
+    }
+
+    private static LogInfo parseLog(ByteBuffer log, long lsn) {
+        LogInfo li = isInsertLog(log) ? parseInsertLog(log) : parseUpdateLog(log);
+        li.lsn = lsn;
+        return li;
     }
 
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -141,93 +263,103 @@ public class Recover {
     private static int OF_UPDATA_RAW = OF_UPDATE_ID + 8;
 
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+        return updateLog(xid, di.getUid(), di.getOldRaw(), newRaw);
+    }
+
+    // 页内从uid对应的偏移开始的一段字节的修改，清理回收空间时以SUPER_XID写入，只会被重做
+    public static byte[] updateLog(long xid, long uid, byte[] oldRaw, byte[] newRaw) {
+        byte[] logType = {LOG_TYPE_UPDATE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(uid);
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
-        UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_ID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_ID, OF_UPDATA_RAW));
+    private static LogInfo parseUpdateLog(ByteBuffer log) {
+        LogInfo li = new LogInfo();
+        li.type = LOG_TYPE_UPDATE;
+        li.xid = log.getLong(OF_XID);
+        long uid = log.getLong(OF_UPDATE_ID);
         li.offset = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int) (uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATA_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATA_RAW, OF_UPDATA_RAW + length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATA_RAW + length, OF_UPDATA_RAW + length * 2);
+        int length = (log.limit() - OF_UPDATA_RAW) / 2;
+        li.oldRaw = slice(log, OF_UPDATA_RAW, OF_UPDATA_RAW + length);
+        li.raw = slice(log, OF_UPDATA_RAW + length, OF_UPDATA_RAW + length * 2);
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if (flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page pg = null;
-        try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
-        }
-    }
-
     // [LogType] [XID] [Pgno] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, Page pg, short offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        byte[] offsetRaw = Parser.short2Byte(offset);
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
-        InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+    private static LogInfo parseInsertLog(ByteBuffer log) {
+        LogInfo li = new LogInfo();
+        li.type = LOG_TYPE_INSERT;
+        li.xid = log.getLong(OF_XID);
+        li.pgno = log.getInt(OF_INSERT_PGNO);
+        li.offset = log.getShort(OF_INSERT_OFFSET);
+        li.raw = slice(log, OF_INSERT_RAW, log.limit());
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
-        Page pg = null;
-        try {
-            pg = pc.getPage(li.pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+    // [LogType] [XID]
+    public static byte[] commitLog(long xid) {
+        return endLog(LOG_TYPE_COMMIT, xid);
+    }
+
+    public static byte[] abortLog(long xid) {
+        return endLog(LOG_TYPE_ABORT, xid);
+    }
+
+    private static byte[] endLog(byte type, long xid) {
+        return Bytes.concat(new byte[]{type}, Parser.long2Byte(xid));
+    }
+
+    // [LogType] [BeginLSN] [DirtyCount] [Pgno RecLSN]... [ActiveCount] [XID FirstLSN]...
+    public static byte[] checkpointLog(long beginLsn, Map<Integer, Long> dirtyPages, Map<Long, Long> active) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 4 + dirtyPages.size() * 12 + 4 + active.size() * 16);
+        buf.put(LOG_TYPE_CHECKPOINT);
+        buf.putLong(beginLsn);
+        buf.putInt(dirtyPages.size());
+        for (Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            buf.putInt(e.getKey());
+            buf.putLong(e.getValue());
         }
-        try {
-            if (flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            PageX.recoverInsert(pg, li.raw, li.offset);
-        } finally {
-            pc.release(pg);
+        buf.putInt(active.size());
+        for (Map.Entry<Long, Long> e : active.entrySet()) {
+            buf.putLong(e.getKey());
+            buf.putLong(e.getValue());
+        }
+        return buf.array();
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(ByteBuffer log) {
+        ByteBuffer buf = slice(log, OF_XID, log.limit());
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.beginLsn = buf.getLong();
+        ci.dirtyPages = new HashMap<>();
+        int n = buf.getInt();
+        for (int i = 0; i < n; i++) {
+            int pgno = buf.getInt();
+            ci.dirtyPages.put(pgno, buf.getLong());
+        }
+        ci.activeTransactions = new HashMap<>();
+        n = buf.getInt();
+        for (int i = 0; i < n; i++) {
+            long xid = buf.getLong();
+            ci.activeTransactions.put(xid, buf.getLong());
         }
+        return ci;
     }
 }
@@ -32,9 +32,20 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
+    // 内部数据项，见DataManager.insertInternal
+    public static byte[] wrapInternalDataItemRaw(byte[] raw) {
+        byte[] item = wrapDataItemRaw(raw);
+        item[DataItemImpl.OF_VALID] = DataItemImpl.VALID_INTERNAL;
+        return item;
+    }
+
+    public static void setDataItemRawInvalid(byte[] raw) {
+        raw[DataItemImpl.OF_VALID] = (byte) 1;
+    }
+
     public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, DataItemImpl.OF_SIZE, DataItemImpl.OF_DATA));
+        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
         short length = (short) (size + DataItemImpl.OF_DATA);
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
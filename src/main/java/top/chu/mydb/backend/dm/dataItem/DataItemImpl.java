@@ -10,13 +10,15 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节 0为合法 1为非法
+ * ValidFlag 1字节 0为合法 1为非法 3为合法的内部数据项（2为页内的空洞，见PageX）
  * DataSize 2字节 Data的长度
+ * before() 到 after()/unBefore() 之间持有页锁，保证刷盘时页内没有未写日志的修改
  */
 public class DataItemImpl implements DataItem {
     static final int OF_VALID = 0;
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
+    static final byte VALID_INTERNAL = 3;
 
     private SubArray raw;
     private byte[] oldRaw;
@@ -38,7 +40,8 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start + OF_VALID] == (byte) 0;
+        byte valid = raw.raw[raw.start + OF_VALID];
+        return valid == (byte) 0 || valid == VALID_INTERNAL;
     }
 
     @Override
@@ -49,6 +52,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
+        pg.lock();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
@@ -56,12 +60,14 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.unlock();
         wLock.unlock();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        pg.unlock();
         wLock.unlock();
     }
 
@@ -0,0 +1,129 @@
+package top.chu.mydb.backend.dm.logger;
+
+import top.chu.mydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * 基于内存映射的日志游标，按段映射日志文件，逐条校验并以 ByteBuffer 切片的形式给出日志内容
+ * 读取过程中不拷贝日志数据，每条日志只分配一个切片对象
+ * 游标创建时记下各段的可读范围，之后写入的日志不可见
+ */
+public class LogCursor {
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+
+    private List<LogSegment> segments;
+    private long[] limits; // 各段可读范围的结尾
+    private int segIndex;
+    private MappedByteBuffer buf; // 当前段的映射
+    private ByteBuffer view; // 计算校验和时复用的视图
+    private int pos; // 下一条日志在当前段内的偏移
+    private int limit;
+    private long lsn;
+    private ByteBuffer data;
+    private CRC32C crc;
+
+    LogCursor(List<LogSegment> segments, long[] limits, int segIndex, long offset) {
+        this.segments = segments;
+        this.limits = limits;
+        this.segIndex = segIndex;
+        this.crc = new CRC32C();
+        map(Math.max(offset, LogSegment.LEN_HEADER));
+    }
+
+    private void map(long offset) {
+        LogSegment seg = segments.get(segIndex);
+        limit = (int) limits[segIndex];
+        try {
+            buf = seg.fc.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        view = buf.duplicate();
+        pos = (int) Math.min(offset, limit);
+    }
+
+    // 移动到下一条日志，没有更多日志时返回false
+    public boolean next() {
+        while (true) {
+            if (readLog()) {
+                return true;
+            }
+            // 当前段结束，进入下一个段
+            if (segIndex + 1 >= segments.size()) {
+                return false;
+            }
+            segIndex++;
+            map(LogSegment.LEN_HEADER);
+        }
+    }
+
+    private boolean readLog() {
+        if (pos + OF_DATA >= limit) {
+            return false;
+        }
+        int size = buf.getInt(pos + OF_SIZE);
+        if (size <= 0 || (long) pos + OF_DATA + size > limit) {
+            return false;
+        }
+        int end = pos + OF_DATA + size;
+
+        crc.reset();
+        select(pos + OF_SIZE, pos + OF_CHECKSUM);
+        crc.update(view);
+        select(pos + OF_DATA, end);
+        crc.update(view);
+        if ((int) crc.getValue() != buf.getInt(pos + OF_CHECKSUM)) {
+            return false;
+        }
+
+        select(pos + OF_DATA, end);
+        data = view.slice();
+        lsn = segments.get(segIndex).startLsn + pos;
+        pos = end;
+        return true;
+    }
+
+    private void select(int from, int to) {
+        view.limit(to);
+        view.position(from);
+    }
+
+    // 当前日志的LSN
+    public long lsn() {
+        return lsn;
+    }
+
+    // 当前日志的内容，position为0
+    public ByteBuffer data() {
+        return data;
+    }
+
+    // 下一条日志的LSN
+    public long nextLsn() {
+        return segments.get(segIndex).startLsn + pos;
+    }
+
+    // 当前段在游标位置之后是否全为0
+    boolean restIsZero() {
+        int i = pos;
+        for (; i + 8 <= limit; i += 8) {
+            if (buf.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buf.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
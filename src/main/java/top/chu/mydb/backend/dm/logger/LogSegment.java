@@ -0,0 +1,131 @@
+package top.chu.mydb.backend.dm.logger;
+
+import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 日志段文件，创建时即预分配到固定大小
+ * 段文件格式：
+ * [Magic] [StartLSN] [Log1] [Log2] ... [LogN] [0...]
+ * Magic 8字节 文件格式标识
+ * StartLSN 8字节 段在整个日志中的起始LSN
+ * 段内偏移为 off 的位置，其LSN为 StartLSN + off
+ */
+class LogSegment {
+    static final int OF_MAGIC = 0;
+    static final int OF_START_LSN = OF_MAGIC + 8;
+    static final int LEN_HEADER = OF_START_LSN + 8;
+
+    private static final int ZERO_CHUNK = 1 << 16;
+
+    long startLsn;
+    long size; // 段文件的大小
+    long writePos; // 段内下一条日志写入的偏移
+    File f;
+    RandomAccessFile file;
+    FileChannel fc;
+
+    private LogSegment(File f, long startLsn) {
+        this.f = f;
+        this.startLsn = startLsn;
+        try {
+            this.file = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        this.fc = file.getChannel();
+    }
+
+    static String fileName(String base, long startLsn) {
+        return base + LoggerImpl.LOG_SUFFIX + "." + String.format("%016x", startLsn);
+    }
+
+    static LogSegment create(String base, long startLsn, long size) {
+        File f = new File(fileName(base, startLsn));
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        LogSegment seg = new LogSegment(f, startLsn);
+        seg.size = size;
+        try {
+            seg.zero(0, size);
+            ByteBuffer header = ByteBuffer.allocate(LEN_HEADER);
+            header.putLong(LoggerImpl.MAGIC);
+            header.putLong(startLsn);
+            header.flip();
+            seg.fc.write(header, 0);
+            seg.fc.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        seg.writePos = LEN_HEADER;
+        return seg;
+    }
+
+    // 打开已有的段文件，文件头不合法时返回null
+    static LogSegment open(File f, long startLsn) {
+        LogSegment seg = new LogSegment(f, startLsn);
+        ByteBuffer header = ByteBuffer.allocate(LEN_HEADER);
+        try {
+            seg.size = seg.fc.size();
+            seg.fc.read(header, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        byte[] raw = header.array();
+        if (seg.size < LEN_HEADER
+                || Parser.parseLong(raw) != LoggerImpl.MAGIC
+                || ByteBuffer.wrap(raw, OF_START_LSN, 8).getLong() != startLsn) {
+            seg.close();
+            return null;
+        }
+        seg.writePos = LEN_HEADER;
+        return seg;
+    }
+
+    long endLsn() {
+        return startLsn + size;
+    }
+
+    boolean contains(long lsn) {
+        return lsn >= startLsn && lsn < startLsn + size;
+    }
+
+    // 将 [from, to) 区间清零
+    void zero(long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        while (from < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK, to - from));
+            from += fc.write(zeros, from);
+        }
+    }
+
+    void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void delete() {
+        close();
+        if (!f.delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+}
@@ -1,77 +1,66 @@
 package top.chu.mydb.backend.dm.logger;
 
+import top.chu.mydb.backend.common.Durability;
 import top.chu.mydb.backend.utils.Panic;
-import top.chu.mydb.backend.utils.Parser;
 import top.chu.mydb.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.TreeMap;
 
 public interface Logger {
-    void log(byte[] data);
+    long log(byte[] data); // 写入一条日志，按持久化策略决定是否等待刷盘，返回其LSN
+    long log(byte[] data, Durability durability); // 以指定的持久化策略写入一条日志
+    void flush(long lsn); // 保证lsn处及之前的日志都已刷盘
+    void flush(); // 所有已写入的日志刷盘
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    LogCursor cursor(long lsn); // 从lsn处开始读取日志的游标，lsn为0时从最早的日志开始
+    void purge(long lsn); // 删除lsn之前已经不再需要的段
+    long endLsn(); // 下一条日志的LSN
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        try {
-            if (!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
+    public static Logger create(String path, long segmentSize) {
+        return create(path, segmentSize, Durability.SYNC);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    public static Logger create(String path, long segmentSize, Durability durability) {
+        if (new File(path + LoggerImpl.LOG_SUFFIX).exists() || !LoggerImpl.listSegments(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
         }
 
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, durability);
+        lg.initNew();
+
+        return lg;
     }
 
     public static Logger open(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        if (!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
+        return open(path, Durability.SYNC);
+    }
+
+    public static Logger open(String path, Durability durability) {
+        // 旧版本的单文件日志属于旧格式的数据库，无法打开，不做任何修改
+        if (new File(path + LoggerImpl.LOG_SUFFIX).exists()) {
+            Panic.panic(Error.BadLogFileException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        TreeMap<Long, File> files = LoggerImpl.listSegments(path);
+        if (files.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        for (File f : files.values()) {
+            if (!f.canRead() || !f.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
+        LoggerImpl lg = new LoggerImpl(path, LoggerImpl.DEFAULT_SEGMENT_SIZE, durability);
+        lg.init(files);
 
         return lg;
     }
@@ -1,187 +1,314 @@
 package top.chu.mydb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.common.Syncer;
 import top.chu.mydb.backend.utils.Panic;
 import top.chu.mydb.backend.utils.Parser;
 import top.chu.mydb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
- * 日志文件标准格式：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum为后续所有日志计算的校验和
+ * 日志由若干个固定大小、预分配的段文件组成，段文件以起始LSN命名，写满后切换到下一个段
+ * [Segment1] [Segment2] ... [SegmentN]
+ * 段文件格式见 LogSegment
  * 每条日志正确的格式：
  * [Size] [Checksum] [Data]
  * Size 4字节int 表示Data的字节数
- * Checksum 4字节int 该条日志的校验和
+ * Checksum 4字节int 对Size和Data计算的CRC32C
+ * 每条日志自带校验，段内遇到第一条校验失败的日志即为该段的结尾，最后一个段的结尾之后为 bad tail
+ * 读取日志通过 LogCursor 进行
+ * 写入日志后是否等待刷盘由 Durability 决定，GROUP 模式下并发写入者的刷盘会被合并
  */
 public class LoggerImpl implements Logger {
-    private static final int SEED = 13331;
+    static final long MAGIC = 0x4d59444257414c32L; // "MYDBWAL2"
 
-    private static final int OF_SIZE = 0;
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    static final long MIN_SEGMENT_SIZE = 1L << 16;
+    static final long MAX_SEGMENT_SIZE = 1L << 30; // 段需要整体映射到内存
 
+    private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
     public static final String LOG_SUFFIX = ".log";
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
+    private long segmentSize;
+    private List<LogSegment> segments; // 按起始LSN升序排列，最后一个为当前写入的段
     private Lock lock;
-    private long position; // 当前日志指针的位置
-    private long fileSize;
-    private int xCheckSum;
+    private LogCursor reader; // next() 使用的游标
+    private Durability durability;
+    private Syncer syncer; // 以日志结尾的LSN作为序号
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    LoggerImpl(String path, long segmentSize, Durability durability) {
+        this.path = path;
+        this.segmentSize = Math.min(Math.max(segmentSize, MIN_SEGMENT_SIZE), MAX_SEGMENT_SIZE);
+        this.segments = new ArrayList<>();
+        this.durability = durability;
         lock = new ReentrantLock();
     }
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xCheckSum = xCheckSum;
-        lock = new ReentrantLock();
+
+    // 列出path下的所有段文件，按起始LSN排序
+    static TreeMap<Long, File> listSegments(String path) {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + LOG_SUFFIX + ".";
+        TreeMap<Long, File> res = new TreeMap<>();
+        File[] files = base.getParentFile().listFiles();
+        if (files == null) return res;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || name.length() != prefix.length() + 16) {
+                continue;
+            }
+            try {
+                res.put(Long.parseUnsignedLong(name.substring(prefix.length()), 16), f);
+            } catch (NumberFormatException e) {
+                // 不是段文件
+            }
+        }
+        return res;
     }
 
-    void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+    void initNew() {
+        segments.add(LogSegment.create(path, 0, segmentSize));
+        syncDir();
+        syncer = new Syncer(this::forceCurrent, endLsn());
+    }
+
+    void init(TreeMap<Long, File> files) {
+        for (Map.Entry<Long, File> e : files.entrySet()) {
+            LogSegment seg = LogSegment.open(e.getValue(), e.getKey());
+            if (seg == null) {
+                // 只有最后一个段可能因切换时崩溃而不完整，其中不会有日志
+                if (e.getKey().equals(files.lastKey()) && !segments.isEmpty()) {
+                    if (!e.getValue().delete()) {
+                        Panic.panic(Error.FileCannotRWException);
+                    }
+                    continue;
+                }
+                Panic.panic(Error.BadLogFileException);
+            }
+            if (!segments.isEmpty() && segments.get(segments.size() - 1).endLsn() != seg.startLsn) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            segments.add(seg);
         }
-        if (size < 4) {
+        if (segments.isEmpty()) {
             Panic.panic(Error.BadLogFileException);
         }
-
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int xCheckSum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xCheckSum = xCheckSum;
+        segmentSize = current().size;
 
         checkAndRemoveTail();
+        syncer = new Syncer(this::forceCurrent, endLsn());
     }
 
-    // 检查并移除 bad tail
+    // 检查并移除最后一个段的 bad tail
     private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        while (true) {
-            byte[] log = internNext();
-            if (log == null) break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if (xCheck != xCheckSum) {
-            Panic.panic(Error.BadLogFileException);
+        LogSegment seg = current();
+        List<LogSegment> segs = new ArrayList<>();
+        segs.add(seg);
+        LogCursor cursor = new LogCursor(segs, new long[]{seg.size}, 0, LogSegment.LEN_HEADER);
+        while (cursor.next()) {
         }
-
-        // 截断文件到正常日志的末尾
+        long tail = cursor.nextLsn() - seg.startLsn;
+        seg.writePos = seg.size;
         try {
-            truncate(position);
+            if (!cursor.restIsZero()) {
+                // 截断到正常日志的末尾
+                truncate(seg.startLsn + tail);
+            }
         } catch (Exception e) {
             Panic.panic(e);
         }
-        try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        seg.writePos = tail;
         rewind();
     }
 
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    static int calChecksum(byte[] log) {
+        CRC32C crc = new CRC32C();
+        crc.update(log, OF_SIZE, OF_CHECKSUM - OF_SIZE);
+        crc.update(log, OF_DATA, log.length - OF_DATA);
+        return (int) crc.getValue();
     }
 
-    private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
-            return null;
+    @Override
+    public long log(byte[] data) {
+        return log(data, durability);
+    }
+
+    @Override
+    public long log(byte[] data, Durability durability) {
+        long lsn = append(data);
+        switch (durability.mode()) {
+            case SYNC:
+                syncer.force(lsn + 1);
+                break;
+            case GROUP:
+                syncer.sync(lsn + 1);
+                break;
+            default:
+                // PERIODIC 由后台线程调用 flush()，OS 交给操作系统
+                break;
         }
-        // 读取size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+        return lsn;
+    }
+
+    @Override
+    public void flush(long lsn) {
+        syncer.sync(lsn + 1);
+    }
+
+    @Override
+    public void flush() {
+        syncer.syncAll();
+    }
+
+    // 写入一条日志但不刷盘，返回其LSN
+    long append(byte[] data) {
+        byte[] log = wrapLog(data);
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(tmp);
+            if (log.length > segmentSize - LogSegment.LEN_HEADER) {
+                Panic.panic(Error.DataTooLargeException);
+            }
+            LogSegment seg = current();
+            if (seg.writePos + log.length > seg.size) {
+                seg = rotate();
+            }
+            long lsn = seg.startLsn + seg.writePos;
+            seg.fc.write(ByteBuffer.wrap(log), seg.writePos);
+            seg.writePos += log.length;
+            syncer.written(lsn + log.length);
+            return lsn;
         } catch (IOException e) {
             Panic.panic(e);
+            return 0;
+        } finally {
+            lock.unlock();
         }
-        int size = Parser.parseInt(tmp.array());
-        if (position + OF_DATA + size > fileSize) {
-            return null;
-        }
-        // 读取checksum + data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    }
+
+    // 刷盘当前段，之前的段在切换时已经刷盘
+    private void forceCurrent() throws IOException {
+        FileChannel fc;
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            fc = current().fc;
+        } finally {
+            lock.unlock();
         }
-        byte[] log = buf.array();
+        fc.force(false);
+    }
 
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if (checkSum1 != checkSum2) {
-            return null;
+    // 当前段写满，刷盘后切换到新的段
+    private LogSegment rotate() throws IOException {
+        LogSegment old = current();
+        old.fc.force(false);
+        LogSegment seg = LogSegment.create(path, old.endLsn(), segmentSize);
+        segments.add(seg);
+        syncDir();
+        return seg;
+    }
+
+    private void syncDir() {
+        File dir = new File(path).getAbsoluteFile().getParentFile();
+        try (FileChannel dc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dc.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持对目录刷盘
         }
-        position += log.length;
+    }
+
+    private LogSegment current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    static byte[] wrapLog(byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        System.arraycopy(Parser.int2Byte(data.length), 0, log, OF_SIZE, 4);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        System.arraycopy(Parser.int2Byte(calChecksum(log)), 0, log, OF_CHECKSUM, 4);
         return log;
     }
 
+    // 将日志截断到x处，x之后的段被删除，x所在段的剩余部分被清零
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while (segments.size() > 1 && current().startLsn > x) {
+                segments.remove(segments.size() - 1).delete();
+            }
+            LogSegment seg = current();
+            if (!seg.contains(x)) {
+                throw Error.BadLogFileException;
+            }
+            long off = Math.max(x - seg.startLsn, LogSegment.LEN_HEADER);
+            seg.zero(off, seg.writePos);
+            seg.fc.force(false);
+            seg.writePos = off;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    // 删除所有在lsn之前结束的段，当前写入的段不会被删除
+    @Override
+    public void purge(long lsn) {
+        lock.lock();
+        try {
+            while (segments.size() > 1 && segments.get(0).endLsn() <= lsn) {
+                segments.remove(0).delete();
+                reader = null;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xCheckSum = calChecksum(this.xCheckSum, log);
+    @Override
+    public long endLsn() {
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(this.xCheckSum)));
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            LogSegment seg = current();
+            return seg.startLsn + seg.writePos;
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public void truncate(long x) throws Exception {
+    public LogCursor cursor(long lsn) {
         lock.lock();
         try {
-            fc.truncate(x);
+            List<LogSegment> segs = new ArrayList<>(segments);
+            long[] limits = new long[segs.size()];
+            for (int i = 0; i < segs.size(); i++) {
+                LogSegment seg = segs.get(i);
+                limits[i] = seg == current() ? seg.writePos : seg.size;
+            }
+            if (lsn == 0) {
+                return new LogCursor(segs, limits, 0, LogSegment.LEN_HEADER);
+            }
+            for (int i = 0; i < segs.size(); i++) {
+                LogSegment seg = segs.get(i);
+                if (lsn >= seg.startLsn && lsn <= seg.startLsn + limits[i]) {
+                    return new LogCursor(segs, limits, i, lsn - seg.startLsn);
+                }
+            }
+            // lsn 所在的段已被回收
+            Panic.panic(Error.BadLogFileException);
+            return null;
         } finally {
             lock.unlock();
         }
@@ -191,9 +318,14 @@ public class LoggerImpl implements Logger {
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            if (reader == null) {
+                reader = cursor(0);
+            }
+            if (!reader.next()) return null;
+            ByteBuffer data = reader.data();
+            byte[] log = new byte[data.remaining()];
+            data.get(log);
+            return log;
         } finally {
             lock.unlock();
         }
@@ -201,16 +333,14 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void rewind() {
-        position = 4;
+        reader = null;
     }
 
     @Override
     public void close() {
-        try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
-            Panic.panic(e);
+        flush();
+        for (LogSegment seg : segments) {
+            seg.close();
         }
     }
 }
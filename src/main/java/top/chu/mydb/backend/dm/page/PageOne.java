@@ -1,6 +1,7 @@
 package top.chu.mydb.backend.dm.page;
 
 import top.chu.mydb.backend.dm.pageCache.PageCache;
+import top.chu.mydb.backend.utils.Parser;
 import top.chu.mydb.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -8,14 +9,20 @@ import java.util.Arrays;
 /**
  * 用于判断上一次数据库是否正常关闭
  * validCheck
+ * 同时记录最近一次检查点日志的LSN，恢复时从此处开始
+ * 以及普通页的格式标记：普通页带有PageLSN，旧版本的文件没有标记，其中的UID依赖旧的页内偏移，无法转换，拒绝打开
  */
 public class PageOne {
     public static final int OF_VC = 100;
     public static final int LEN_VC = 8;
+    public static final int OF_CKPT = OF_VC + 2 * LEN_VC;
+    public static final int OF_FORMAT = OF_CKPT + 8;
+    static final long PAGE_FORMAT = 0x4d59444250475831L; // "MYDBPGX1"
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setVcOpen(raw);
+        System.arraycopy(Parser.long2Byte(PAGE_FORMAT), 0, raw, OF_FORMAT, 8);
         return raw;
     }
 
@@ -44,4 +51,19 @@ public class PageOne {
     private static boolean checkVc(byte[] raw) {
         return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC + LEN_VC), Arrays.copyOfRange(raw, OF_VC + LEN_VC, OF_VC + 2 * LEN_VC));
     }
+
+    public static void setCheckpoint(Page pg, long lsn) {
+        pg.setDirty(true);
+        System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_CKPT, 8);
+    }
+
+    // 返回0表示还没有检查点
+    public static long getCheckpoint(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_CKPT, OF_CKPT + 8));
+    }
+
+    // 文件中的普通页是否为当前格式
+    public static boolean checkFormat(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_FORMAT, OF_FORMAT + 8)) == PAGE_FORMAT;
+    }
 }
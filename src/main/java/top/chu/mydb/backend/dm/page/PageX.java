@@ -3,18 +3,29 @@ package top.chu.mydb.backend.dm.page;
 import top.chu.mydb.backend.dm.pageCache.PageCache;
 import top.chu.mydb.backend.utils.Parser;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * 管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
+ * FreeSpaceOffset 2字节 空闲位置开始偏移
+ * PageLSN 8字节 最后一条修改该页的日志的LSN，恢复时据此跳过已经落盘的修改
+ * Data 由数据项 [Valid] [Size] [Data] 依次排列，Valid为ITEM_FREE的数据项是空洞，
+ * 空洞由清理时回收的空间形成，插入时优先复用，放不满时剩余部分仍是一个空洞
  */
 public class PageX {
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_LSN = OF_FREE + 2;
+    private static final short OF_DATA = OF_LSN + 8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
+    public static final byte ITEM_FREE = 2;
+    public static final int ITEM_HEADER = 3; // [Valid] [Size]
+
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setFSO(raw, OF_DATA);
@@ -22,7 +33,23 @@ public class PageX {
     }
 
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, 2);
+    }
+
+    public static long getPageLSN(Page pg) {
+        return getPageLSN(pg.getData());
+    }
+
+    public static long getPageLSN(byte[] raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw, OF_LSN, OF_DATA));
+    }
+
+    // PageLSN只会向前推进
+    public static void setPageLSN(Page pg, long lsn) {
+        if (lsn > getPageLSN(pg)) {
+            pg.setDirty(true);
+            System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_LSN, 8);
+        }
     }
 
     public static short getFSO(Page pg) {
@@ -33,16 +60,92 @@ public class PageX {
         return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
     }
 
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short) (offset + raw.length));
-        return offset;
+    // 找到能放下length字节数据项的位置，先找空洞再用末尾的空闲空间，都放不下时返回-1
+    public static short allocate(Page pg, int length) {
+        byte[] raw = pg.getData();
+        short fso = getFSO(raw);
+        for (int offset = OF_DATA; offset < fso; offset += itemLength(raw, offset)) {
+            if (raw[offset] != ITEM_FREE) continue;
+            int hole = itemLength(raw, offset);
+            if (hole == length || hole >= length + ITEM_HEADER) {
+                return (short) offset;
+            }
+        }
+        return PageCache.PAGE_SIZE - fso >= length ? fso : (short) -1;
+    }
+
+    // 在allocate得到的位置写入时实际需要写的内容，占用空洞的一部分时在后面补上剩余空洞的头
+    public static byte[] placement(Page pg, short offset, byte[] raw) {
+        byte[] data = pg.getData();
+        if (offset >= getFSO(data)) {
+            return raw;
+        }
+        int rest = itemLength(data, offset) - raw.length;
+        if (rest == 0) {
+            return raw;
+        }
+        byte[] placed = Arrays.copyOf(raw, raw.length + ITEM_HEADER);
+        setFreeHeader(placed, raw.length, rest);
+        return placed;
     }
 
+    // 插入placement得到的内容
+    public static void insert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, raw, offset);
+    }
+
+    // 单个数据项最多能使用的空间，用于空闲空间索引
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int) getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        short fso = getFSO(raw);
+        int free = PageCache.PAGE_SIZE - fso;
+        for (int offset = OF_DATA; offset < fso; offset += itemLength(raw, offset)) {
+            if (raw[offset] == ITEM_FREE) {
+                free = Math.max(free, itemLength(raw, offset) - ITEM_HEADER);
+            }
+        }
+        return free;
+    }
+
+    // 页内所有数据项的偏移
+    public static List<Short> offsets(Page pg) {
+        byte[] raw = pg.getData();
+        short fso = getFSO(raw);
+        List<Short> offsets = new ArrayList<>();
+        for (int offset = OF_DATA; offset < fso; offset += itemLength(raw, offset)) {
+            offsets.add((short) offset);
+        }
+        return offsets;
+    }
+
+    // 数据项连同头部的总长度
+    public static int itemLength(byte[] raw, int offset) {
+        return ITEM_HEADER + (Parser.parseShort(Arrays.copyOfRange(raw, offset + 1, offset + ITEM_HEADER)) & 0xffff);
+    }
+
+    // offset处的数据项紧跟在空洞之后时返回该空洞的位置，否则返回offset
+    public static int precedingHole(Page pg, int offset) {
+        byte[] raw = pg.getData();
+        int prev = -1;
+        for (int off = OF_DATA; off < offset; off += itemLength(raw, off)) {
+            prev = off;
+        }
+        return prev >= 0 && raw[prev] == ITEM_FREE ? prev : offset;
+    }
+
+    // 从offset开始长length的空洞，与紧跟其后的空洞合并，返回合并后的长度
+    public static int coalesce(Page pg, int offset, int length) {
+        byte[] raw = pg.getData();
+        short fso = getFSO(raw);
+        while (offset + length < fso && raw[offset + length] == ITEM_FREE) {
+            length += itemLength(raw, offset + length);
+        }
+        return length;
+    }
+
+    public static void setFreeHeader(byte[] raw, int offset, int length) {
+        raw[offset] = ITEM_FREE;
+        System.arraycopy(Parser.short2Byte((short) (length - ITEM_HEADER)), 0, raw, offset + 1, 2);
     }
 
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
@@ -59,4 +162,22 @@ public class PageX {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
+
+    // 直接从日志的切片中拷贝到页内，raw的position不变
+    public static void recoverInsert(Page pg, ByteBuffer raw, short offset) {
+        int length = raw.remaining();
+        recoverUpdate(pg, raw, offset);
+
+        short rawFSO = getFSO(pg.getData());
+        if (rawFSO < offset + length) {
+            setFSO(pg.getData(), (short) (offset + length));
+        }
+    }
+
+    public static void recoverUpdate(Page pg, ByteBuffer raw, short offset) {
+        pg.setDirty(true);
+        int position = raw.position();
+        raw.get(pg.getData(), offset, raw.remaining());
+        raw.position(position);
+    }
 }
@@ -1,5 +1,7 @@
 package top.chu.mydb.backend.dm.pageCache;
 
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.dm.logger.Logger;
 import top.chu.mydb.backend.dm.page.Page;
 import top.chu.mydb.backend.utils.Panic;
 import top.chu.mydb.common.Error;
@@ -9,6 +11,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
 public interface PageCache {
     public static final int PAGE_SIZE = 1 << 13;
@@ -18,9 +21,18 @@ public interface PageCache {
     void release(Page page);
     void truncateByPgno(int maxPgno);
     int getPageNumber();
-    void flushPage(Page pg);
+    void flushPage(Page pg); // 写回一页并刷盘
+    void sync(); // 已写回的页刷盘
+    void setLogger(Logger logger); // 写回页之前需要刷盘的日志
+    void markDirty(int pgno, long recLsn); // 页即将被日志记录的修改弄脏，recLsn不大于该修改的LSN
+    int capacity(); // 缓存最多同时持有的页数
+    Map<Integer, Long> dirtyPages(); // 脏页表的快照，包括写回还未落盘的页，页号 -> 使其变脏的最早日志的LSN
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, Durability.SYNC);
+    }
+
+    public static PageCacheImpl create(String path, long memory, Durability durability) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -40,10 +52,14 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE));
+        return new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE), durability);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, Durability.SYNC);
+    }
+
+    public static PageCacheImpl open(String path, long memory, Durability durability) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -60,7 +76,7 @@ public interface PageCache {
             Panic.panic(e);
         }
 
-        return new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE));
+        return new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE), durability);
     }
 
 }
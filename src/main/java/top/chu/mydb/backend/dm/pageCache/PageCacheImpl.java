@@ -1,8 +1,12 @@
 package top.chu.mydb.backend.dm.pageCache;
 
 import top.chu.mydb.backend.common.AbstractCache;
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.common.Syncer;
+import top.chu.mydb.backend.dm.logger.Logger;
 import top.chu.mydb.backend.dm.page.Page;
 import top.chu.mydb.backend.dm.page.PageImpl;
+import top.chu.mydb.backend.dm.page.PageX;
 import top.chu.mydb.backend.utils.Panic;
 import top.chu.mydb.common.Error;
 
@@ -10,6 +14,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -21,8 +28,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     private FileChannel fc;
     private Lock fileLock;
     public AtomicInteger pageNumbers;
-
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+    private Map<Integer, Long> dirtyPages; // 脏页表，页号 -> recLSN
+    private Map<Integer, long[]> unsynced; // 已移出脏页表但写回还未确认落盘的页，页号 -> {recLSN, 写回的序号, 进行中的写回数}
+    private int capacity;
+    private Durability durability;
+    private Syncer syncer;
+    private Logger logger;
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, Durability durability) {
         super(maxResource);
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
@@ -37,6 +50,11 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         this.fc = fileChannel;
         this.fileLock = new ReentrantLock();
         this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.capacity = maxResource;
+        this.dirtyPages = new ConcurrentHashMap<>();
+        this.unsynced = new ConcurrentHashMap<>();
+        this.durability = durability;
+        this.syncer = new Syncer(() -> fc.force(false));
     }
 
     /**
@@ -57,8 +75,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
             fc.read(buf);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.unlock();
         }
-        fileLock.unlock();
         return new PageImpl(pgno, buf.array(), this);
     }
     private static long pageOffset(int pgno) {
@@ -68,26 +87,74 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+            flush(pg, durability);
         }
     }
 
-    private void flush(Page pg) {
+    /**
+     * 写回一页，写盘前先保证修改该页的日志都已落盘
+     * 被换出的页按持久化策略刷盘，检查点在写检查点日志前会调用 sync() 统一刷盘
+     * 页移出脏页表后转入unsynced，直到写回确认落盘；dirtyPages()包含这些页，
+     * 检查点不会在写回落盘前越过它们的recLSN
+     */
+    private void flush(Page pg, Durability d) {
         int pgno = pg.getPageNumber();
         long offset = pageOffset(pgno);
 
+        // 在页锁内取得一致的页镜像，写盘时不阻塞对该页的修改
+        byte[] data;
+        Long recLsn;
+        pg.lock();
+        try {
+            data = pg.getData().clone();
+            pg.setDirty(false);
+            recLsn = dirtyPages.remove(pgno);
+            if (recLsn != null) {
+                unsynced.merge(pgno, new long[]{recLsn, 0, 1}, (v, n) -> new long[]{Math.min(v[0], n[0]), v[1], v[2] + 1});
+            }
+        } finally {
+            pg.unlock();
+        }
+
+        // 第一页没有PageLSN，读出为0
+        if (logger != null) {
+            logger.flush(PageX.getPageLSN(data));
+        }
+
         fileLock.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
+            ByteBuffer buf = ByteBuffer.wrap(data);
             fc.position(offset);
             fc.write(buf);
-            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
             fileLock.unlock();
         }
+
+        long ticket = syncer.written();
+        if (recLsn != null) {
+            unsynced.computeIfPresent(pgno, (k, v) -> new long[]{v[0], Math.max(v[1], ticket), v[2] - 1});
+        }
+        switch (d.mode()) {
+            case SYNC:
+                syncer.force(ticket);
+                pruneUnsynced(ticket);
+                break;
+            case GROUP:
+                syncer.sync(ticket);
+                pruneUnsynced(ticket);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // 序号不大于ticket的写回都已落盘
+    private void pruneUnsynced(long ticket) {
+        for (int pgno : unsynced.keySet()) {
+            unsynced.computeIfPresent(pgno, (k, v) -> v[2] == 0 && v[1] <= ticket ? null : v);
+        }
     }
 
     @Override
@@ -106,6 +173,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     public void close() {
         super.close();
+        sync();
         try {
             fc.close();
             file.close();
@@ -137,6 +205,37 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public void flushPage(Page pg) {
-        flush(pg);
+        flush(pg, Durability.SYNC);
+    }
+
+    @Override
+    public void sync() {
+        long ticket = syncer.written();
+        syncer.force(ticket);
+        pruneUnsynced(ticket);
+    }
+
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void markDirty(int pgno, long recLsn) {
+        dirtyPages.putIfAbsent(pgno, recLsn);
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public Map<Integer, Long> dirtyPages() {
+        Map<Integer, Long> snapshot = new HashMap<>(dirtyPages);
+        for (Map.Entry<Integer, long[]> e : unsynced.entrySet()) {
+            snapshot.merge(e.getKey(), e.getValue()[0], Math::min);
+        }
+        return snapshot;
     }
 }
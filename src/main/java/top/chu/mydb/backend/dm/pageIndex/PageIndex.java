@@ -3,10 +3,16 @@ package top.chu.mydb.backend.dm.pageIndex;
 import top.chu.mydb.backend.dm.pageCache.PageCache;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 空闲空间索引，按页内最多能放下的数据项大小分区
+ * 每页最多登记一次，再次登记时替换原有记录；被select取出的页在插入结束后重新登记
+ */
 public class PageIndex {
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
@@ -14,6 +20,7 @@ public class PageIndex {
     private Lock lock;
 
     private List<PageInfo>[] lists;
+    private Map<Integer, PageInfo> indexed;
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
@@ -22,13 +29,20 @@ public class PageIndex {
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
             lists[i] = new ArrayList<>();
         }
+        indexed = new HashMap<>();
     }
 
     public void add(int pgno, int freeSpace) {
         lock.lock();
         try {
+            PageInfo old = indexed.remove(pgno);
+            if (old != null) {
+                lists[old.freeSpace / THRESHOLD].remove(old);
+            }
             int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[number].add(pi);
+            indexed.put(pgno, pi);
         } finally {
             lock.unlock();
         }
@@ -44,7 +58,9 @@ public class PageIndex {
                     number++;
                     continue;
                 }
-                return lists[number].remove(0);
+                PageInfo pi = lists[number].remove(0);
+                indexed.remove(pi.pgno);
+                return pi;
             }
             return null;
         } finally {
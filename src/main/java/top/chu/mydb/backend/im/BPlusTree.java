@@ -0,0 +1,199 @@
+package top.chu.mydb.backend.im;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.im.Node.InsertAndSplitRes;
+import top.chu.mydb.backend.im.Node.LeafSearchRangeRes;
+import top.chu.mydb.backend.im.Node.SearchNextRes;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
+import top.chu.mydb.backend.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 以long为键、UID为值的B+树，允许重复的键
+ * 树由一个保存根节点UID的启动数据项标识，节点和启动数据项都以SUPER_XID写入，不随事务撤销
+ * 采用B-link树的做法：查找和插入每次只锁一个节点，节点分裂时新节点挂在兄弟链上，
+ * 经过的节点被并发分裂时沿兄弟链向右移动即可找到目标，读写互不阻塞
+ */
+public class BPlusTree {
+    DataManager dm;
+    long bootUid;
+    DataItem bootDataItem;
+    Lock bootLock;
+
+    // 创建一棵空树，返回启动数据项的UID
+    public static long create(DataManager dm) throws Exception {
+        byte[] rawRoot = Node.newNilRootRaw();
+        long rootUid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, rawRoot);
+        return dm.insertInternal(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+    }
+
+    public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
+        DataItem bootDataItem = dm.read(bootUid);
+        assert bootDataItem != null;
+        BPlusTree t = new BPlusTree();
+        t.bootUid = bootUid;
+        t.dm = dm;
+        t.bootDataItem = bootDataItem;
+        t.bootLock = new ReentrantLock();
+        return t;
+    }
+
+    private long rootUid() {
+        bootLock.lock();
+        try {
+            SubArray sa = bootDataItem.data();
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
+        } finally {
+            bootLock.unlock();
+        }
+    }
+
+    // 根节点仍为left时以left、right为子节点建立新根并返回true，level为left所在的层
+    private boolean updateRootUid(long left, long right, long rightKey, int level) throws Exception {
+        bootLock.lock();
+        try {
+            SubArray diRaw = bootDataItem.data();
+            if (Parser.parseLong(Arrays.copyOfRange(diRaw.raw, diRaw.start, diRaw.start + 8)) != left) {
+                return false;
+            }
+            byte[] rootRaw = Node.newRootRaw(level + 1, left, right, rightKey);
+            long newRootUid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, rootRaw);
+            bootDataItem.before();
+            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            return true;
+        } finally {
+            bootLock.unlock();
+        }
+    }
+
+    private long searchLeaf(long nodeUid, long key) throws Exception {
+        while (true) {
+            Node node = Node.loadNode(this, nodeUid);
+            int level = node.level();
+            node.release();
+            if (level == 0) {
+                return nodeUid;
+            }
+            nodeUid = searchNext(nodeUid, key);
+        }
+    }
+
+    private long searchNext(long nodeUid, long key) throws Exception {
+        while (true) {
+            Node node = Node.loadNode(this, nodeUid);
+            SearchNextRes res = node.searchNext(key);
+            node.release();
+            if (res.uid != 0) return res.uid;
+            nodeUid = res.siblingUid;
+        }
+    }
+
+    public List<Long> search(long key) throws Exception {
+        return searchRange(key, key);
+    }
+
+    // 键在[leftKey, rightKey]中的所有值，按键排序
+    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        long rootUid = rootUid();
+        long leafUid = searchLeaf(rootUid, leftKey);
+        List<Long> uids = new ArrayList<>();
+        while (true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+            leaf.release();
+            uids.addAll(res.uids);
+            if (res.siblingUid == 0) {
+                break;
+            } else {
+                leafUid = res.siblingUid;
+            }
+        }
+        return uids;
+    }
+
+    public void insert(long key, long uid) throws Exception {
+        long left = 0;
+        int level = 0;
+        while (true) {
+            long rootUid = rootUid();
+            if (level > 0 && rootLevel(rootUid) < level) {
+                // 分裂了的原根节点的新根尚未建立，等待建立它的插入完成
+                Thread.yield();
+                continue;
+            }
+            InsertRes res = insert(rootUid, left, uid, key, level);
+            if (res.newNode == 0) {
+                return;
+            }
+            if (updateRootUid(res.left, res.newNode, res.newKey, res.level)) {
+                return;
+            }
+            // 分裂的节点已不是根节点，把分裂出的节点插入新树中的上一层
+            left = res.left;
+            uid = res.newNode;
+            key = res.newKey;
+            level = res.level + 1;
+        }
+    }
+
+    private int rootLevel(long rootUid) throws Exception {
+        Node root = Node.loadNode(this, rootUid);
+        try {
+            return root.level();
+        } finally {
+            root.release();
+        }
+    }
+
+    class InsertRes {
+        long left; // 分裂的节点
+        long newNode, newKey;
+        int level; // 分裂的节点所在的层
+    }
+
+    // 从nodeUid开始向下，在level层插入；level为0时插入键值对，否则在子节点left之后插入uid
+    private InsertRes insert(long nodeUid, long left, long uid, long key, int level) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        int nodeLevel = node.level();
+        node.release();
+        if (nodeLevel == level) {
+            return insertAndSplit(nodeUid, left, uid, key, level);
+        }
+        long next = searchNext(nodeUid, key);
+        InsertRes ir = insert(next, left, uid, key, level);
+        if (ir.newNode != 0) {
+            return insertAndSplit(nodeUid, ir.left, ir.newNode, ir.newKey, nodeLevel);
+        }
+        return new InsertRes();
+    }
+
+    private InsertRes insertAndSplit(long nodeUid, long left, long uid, long key, int level) throws Exception {
+        while (true) {
+            Node node = Node.loadNode(this, nodeUid);
+            InsertAndSplitRes iasr = node.insertAndSplit(left, uid, key);
+            node.release();
+            if (iasr.siblingUid != 0) {
+                nodeUid = iasr.siblingUid;
+            } else {
+                InsertRes res = new InsertRes();
+                res.left = nodeUid;
+                res.newNode = iasr.newSon;
+                res.newKey = iasr.newKey;
+                res.level = level;
+                return res;
+            }
+        }
+    }
+
+    public void close() {
+        bootDataItem.release();
+    }
+}
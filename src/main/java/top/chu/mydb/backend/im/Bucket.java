@@ -0,0 +1,83 @@
+package top.chu.mydb.backend.im;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * 可扩展哈希的桶，以内部数据项的形式保存在DM中
+ * Bucket结构如下：
+ * [LocalDepth][Count][OverflowUid]
+ * [Key0][Uid0][Key1][Uid1]...
+ * LocalDepth 1字节，桶中所有键的哈希值的低LocalDepth位相同
+ * OverflowUid 溢出桶，0表示没有；溢出桶的LocalDepth与所属的桶相同
+ */
+class Bucket {
+    static final int DEPTH_OFFSET = 0;
+    static final int COUNT_OFFSET = DEPTH_OFFSET + 1;
+    static final int OVERFLOW_OFFSET = COUNT_OFFSET + 2;
+    static final int BUCKET_HEADER_SIZE = OVERFLOW_OFFSET + 8;
+
+    static final int CAPACITY = 64;
+    static final int BUCKET_SIZE = BUCKET_HEADER_SIZE + (2 * 8) * CAPACITY;
+
+    static byte[] newRaw(int depth, long overflow) {
+        SubArray raw = new SubArray(new byte[BUCKET_SIZE], 0, BUCKET_SIZE);
+        setRawDepth(raw, depth);
+        setRawCount(raw, 0);
+        setRawOverflow(raw, overflow);
+        return raw.raw;
+    }
+
+    static void setRawDepth(SubArray raw, int depth) {
+        raw.raw[raw.start + DEPTH_OFFSET] = (byte) depth;
+    }
+
+    static int getRawDepth(SubArray raw) {
+        return raw.raw[raw.start + DEPTH_OFFSET];
+    }
+
+    static void setRawCount(SubArray raw, int count) {
+        System.arraycopy(Parser.short2Byte((short) count), 0, raw.raw, raw.start + COUNT_OFFSET, 2);
+    }
+
+    static int getRawCount(SubArray raw) {
+        return Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + COUNT_OFFSET, raw.start + COUNT_OFFSET + 2));
+    }
+
+    static void setRawOverflow(SubArray raw, long overflow) {
+        System.arraycopy(Parser.long2Byte(overflow), 0, raw.raw, raw.start + OVERFLOW_OFFSET, 8);
+    }
+
+    static long getRawOverflow(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + OVERFLOW_OFFSET, raw.start + OVERFLOW_OFFSET + 8));
+    }
+
+    static void setRawKth(SubArray raw, long key, long uid, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2);
+        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset + 8, 8);
+    }
+
+    static long getRawKthKey(SubArray raw, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2);
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    static long getRawKthUid(SubArray raw, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2) + 8;
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    // 桶未满时追加一对并返回true
+    static boolean append(SubArray raw, long key, long uid) {
+        int count = getRawCount(raw);
+        if (count == CAPACITY) {
+            return false;
+        }
+        setRawKth(raw, key, uid, count);
+        setRawCount(raw, count + 1);
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package top.chu.mydb.backend.im;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
+import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.common.Error;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 由按键排序的(key, uid)自底向上建立B+树，结果与逐个插入建立的树结构相同
+ * 每个节点装入 fillFactor * 最大键数 个键，留出的空间供之后的插入使用
+ * 每层的节点装满CHUNK_NODES个后成批写入：批内从右向左写，每个节点写入时右侧兄弟的UID已知，
+ * 只有上一批最右侧的节点需要再写一次来链接本批，每个节点约一条日志
+ * 每批写完后把各节点的UID和上界交给上一层，所有层在一次遍历中同时建立
+ * 输入未排序时先用SpillSorter排序
+ */
+public class BulkLoader {
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    static final int CHUNK_NODES = 64;
+    private static final int MAX_KEYS = Node.BALANCE_NUMBER * 2 - 1; // 再插入一个键就会分裂
+
+    private class Level {
+        int level;
+        List<SubArray> chunk = new ArrayList<>(); // 已装满、尚未写入的节点
+        SubArray cur; // 正在装入的节点
+        long lastWritten; // 已写入的最右侧节点，兄弟尚未设置
+        long written; // 已写入的节点数
+    }
+
+    private DataManager dm;
+    private int capacity;
+    private List<Level> levels;
+    private boolean empty = true;
+    private long lastKey;
+
+    public BulkLoader(DataManager dm) {
+        this(dm, DEFAULT_FILL_FACTOR);
+    }
+
+    public BulkLoader(DataManager dm, double fillFactor) {
+        this.dm = dm;
+        this.capacity = Math.max(2, Math.min(MAX_KEYS, (int) (Node.BALANCE_NUMBER * 2 * fillFactor)));
+        this.levels = new ArrayList<>();
+    }
+
+    // 键必须不小于之前加入的键
+    public void add(long key, long uid) throws Exception {
+        if (!empty && key < lastKey) {
+            throw Error.UnsortedKeyException;
+        }
+        empty = false;
+        lastKey = key;
+        append(0, uid, key);
+    }
+
+    // 写入剩余的节点和启动数据项，返回树的bootUid，之后可用BPlusTree.load打开
+    public long finish() throws Exception {
+        long rootUid;
+        if (empty) {
+            rootUid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw());
+        } else {
+            rootUid = 0;
+            for (int i = 0; rootUid == 0; i++) {
+                Level lv = levels.get(i);
+                if (lv.cur != null) {
+                    if (lv.chunk.size() == CHUNK_NODES) {
+                        flush(lv, false);
+                    }
+                    lv.chunk.add(lv.cur);
+                    lv.cur = null;
+                }
+                // 整层只有一个节点时它就是根
+                boolean top = lv.written == 0 && lv.chunk.size() == 1 && levels.size() == i + 1;
+                long last = flush(lv, true);
+                if (top) {
+                    rootUid = last;
+                }
+            }
+        }
+        return dm.insertInternal(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+    }
+
+    private Level level(int i) {
+        while (levels.size() <= i) {
+            Level lv = new Level();
+            lv.level = levels.size();
+            levels.add(lv);
+        }
+        return levels.get(i);
+    }
+
+    private void append(int i, long son, long key) throws Exception {
+        Level lv = level(i);
+        if (lv.cur == null) {
+            lv.cur = new SubArray(new byte[Node.NODE_SIZE], 0, Node.NODE_SIZE);
+            Node.setRawLevel(lv.cur, i);
+            Node.setRawNoKeys(lv.cur, 0);
+        }
+        int n = Node.getRawNoKeys(lv.cur);
+        Node.setRawKthSon(lv.cur, son, n);
+        Node.setRawKthKey(lv.cur, key, n);
+        Node.setRawNoKeys(lv.cur, n + 1);
+        if (n + 1 == capacity) {
+            if (lv.chunk.size() == CHUNK_NODES) {
+                flush(lv, false);
+            }
+            lv.chunk.add(lv.cur);
+            lv.cur = null;
+        }
+    }
+
+    // 写入lv中成批的节点，last表示这是该层的最后一批，返回最右侧节点的UID
+    private long flush(Level lv, boolean last) throws Exception {
+        List<SubArray> nodes = lv.chunk;
+        int size = nodes.size();
+        long[] uids = new long[size];
+        long next = 0;
+        for (int k = size - 1; k >= 0; k--) {
+            SubArray raw = nodes.get(k);
+            Node.setRawSibling(raw, next);
+            if (last && k == size - 1 && lv.level > 0) {
+                // 每层最右侧的内部节点以Long.MAX_VALUE为上界
+                Node.setRawKthKey(raw, Long.MAX_VALUE, Node.getRawNoKeys(raw) - 1);
+            }
+            uids[k] = dm.insertInternal(TransactionManagerImpl.SUPER_XID, raw.raw);
+            next = uids[k];
+        }
+        if (lv.lastWritten != 0) {
+            linkSibling(lv.lastWritten, uids[0]);
+        }
+        boolean top = last && lv.written == 0 && size == 1 && levels.size() == lv.level + 1;
+        lv.lastWritten = uids[size - 1];
+        lv.written += size;
+        if (!top) {
+            for (int k = 0; k < size; k++) {
+                SubArray raw = nodes.get(k);
+                long bound = last && k == size - 1 ? Long.MAX_VALUE : Node.getRawKthKey(raw, Node.getRawNoKeys(raw) - 1);
+                append(lv.level + 1, uids[k], bound);
+            }
+        }
+        nodes.clear();
+        return uids[size - 1];
+    }
+
+    private void linkSibling(long uid, long sibling) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            Node.setRawSibling(di.data(), sibling);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+}
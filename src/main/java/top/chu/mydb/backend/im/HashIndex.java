@@ -0,0 +1,332 @@
+package top.chu.mydb.backend.im;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
+import top.chu.mydb.backend.utils.Parser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 以long为键、UID为值的可扩展哈希索引，允许重复的键，只支持等值查找
+ * 目录有2^GlobalDepth项，第i项为哈希值低GlobalDepth位等于i的键所在的桶，常驻内存，
+ * 持久化时按SEGMENT_SIZE项分段保存；启动数据项结构如下：
+ * [GlobalDepth][SegmentNumber][PendingSplit][Segment0]...[SegmentN]
+ * PendingSplit为进行中的分裂：[OldBucket][NewBucket][Pattern][LocalDepth]，OldBucket为0表示没有
+ * 查找和插入持有目录的读锁，每次只锁一个桶；桶满时持有目录的写锁只分裂这一个桶，
+ * 目录项数达到局部深度时目录加倍
+ * 桶中的键哈希值都相同或局部深度已达MAX_DEPTH时无法分裂，改为挂上溢出桶；有溢出桶的桶不再分裂
+ * 分裂依次写入新桶、PendingSplit、目录、原桶，最后清除PendingSplit，都以SUPER_XID写日志；
+ * 恢复后PendingSplit不为空说明分裂中途崩溃，load时重做目录和原桶的修改，这两步都是幂等的
+ */
+public class HashIndex {
+    static final int MAX_DEPTH = 18;
+    static final int SEGMENT_SIZE = 512;
+    private static final int MAX_SEGMENTS = (1 << MAX_DEPTH) / SEGMENT_SIZE;
+
+    private static final int DEPTH_OFFSET = 0;
+    private static final int SEGMENTS_OFFSET = DEPTH_OFFSET + 1;
+    private static final int PENDING_OFFSET = SEGMENTS_OFFSET + 2;
+    private static final int PENDING_SIZE = 8 + 8 + 4 + 1;
+    private static final int SEGMENT_UID_OFFSET = PENDING_OFFSET + PENDING_SIZE;
+    private static final int BOOT_SIZE = SEGMENT_UID_OFFSET + 8 * MAX_SEGMENTS;
+
+    DataManager dm;
+    long bootUid;
+    DataItem bootDataItem;
+    int globalDepth;
+    long[] dir;
+    List<Long> segments;
+    ReadWriteLock dirLock;
+
+    // 创建一个只有一个空桶的索引，返回启动数据项的UID
+    public static long create(DataManager dm) throws Exception {
+        long bucket = dm.insertInternal(TransactionManagerImpl.SUPER_XID, Bucket.newRaw(0, 0));
+        byte[] segment = new byte[8 * SEGMENT_SIZE];
+        System.arraycopy(Parser.long2Byte(bucket), 0, segment, 0, 8);
+        long segmentUid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, segment);
+
+        byte[] boot = new byte[BOOT_SIZE];
+        System.arraycopy(Parser.short2Byte((short) 1), 0, boot, SEGMENTS_OFFSET, 2);
+        System.arraycopy(Parser.long2Byte(segmentUid), 0, boot, SEGMENT_UID_OFFSET, 8);
+        return dm.insertInternal(TransactionManagerImpl.SUPER_XID, boot);
+    }
+
+    public static HashIndex load(long bootUid, DataManager dm) throws Exception {
+        DataItem bootDataItem = dm.read(bootUid);
+        assert bootDataItem != null;
+        HashIndex h = new HashIndex();
+        h.dm = dm;
+        h.bootUid = bootUid;
+        h.bootDataItem = bootDataItem;
+        h.dirLock = new ReentrantReadWriteLock();
+
+        SubArray boot = bootDataItem.data();
+        h.globalDepth = boot.raw[boot.start + DEPTH_OFFSET];
+        int noSegments = Parser.parseShort(Arrays.copyOfRange(boot.raw, boot.start + SEGMENTS_OFFSET, boot.start + PENDING_OFFSET));
+        h.segments = new ArrayList<>();
+        h.dir = new long[1 << h.globalDepth];
+        for (int s = 0; s < noSegments; s++) {
+            int offset = boot.start + SEGMENT_UID_OFFSET + s * 8;
+            long segmentUid = Parser.parseLong(Arrays.copyOfRange(boot.raw, offset, offset + 8));
+            h.segments.add(segmentUid);
+            DataItem di = dm.read(segmentUid);
+            try {
+                SubArray sa = di.data();
+                for (int i = 0; i < SEGMENT_SIZE && s * SEGMENT_SIZE + i < h.dir.length; i++) {
+                    h.dir[s * SEGMENT_SIZE + i] = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + i * 8, sa.start + i * 8 + 8));
+                }
+            } finally {
+                di.release();
+            }
+        }
+
+        ByteBuffer pending = ByteBuffer.wrap(boot.raw, boot.start + PENDING_OFFSET, PENDING_SIZE);
+        long oldBucket = pending.getLong();
+        if (oldBucket != 0) {
+            h.completeSplit(oldBucket, pending.getLong(), pending.getInt(), pending.get());
+        }
+        return h;
+    }
+
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int slot(long hash, int depth) {
+        return (int) (hash & ((1L << depth) - 1));
+    }
+
+    public List<Long> search(long key) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        dirLock.readLock().lock();
+        try {
+            long bucketUid = dir[slot(hash(key), globalDepth)];
+            while (bucketUid != 0) {
+                DataItem di = dm.read(bucketUid);
+                di.rLock();
+                try {
+                    SubArray raw = di.data();
+                    int count = Bucket.getRawCount(raw);
+                    for (int i = 0; i < count; i++) {
+                        if (Bucket.getRawKthKey(raw, i) == key) {
+                            uids.add(Bucket.getRawKthUid(raw, i));
+                        }
+                    }
+                    bucketUid = Bucket.getRawOverflow(raw);
+                } finally {
+                    di.rUnLock();
+                    di.release();
+                }
+            }
+        } finally {
+            dirLock.readLock().unlock();
+        }
+        return uids;
+    }
+
+    public void insert(long key, long uid) throws Exception {
+        long h = hash(key);
+        while (true) {
+            dirLock.readLock().lock();
+            try {
+                if (tryInsert(dir[slot(h, globalDepth)], key, uid)) {
+                    return;
+                }
+            } finally {
+                dirLock.readLock().unlock();
+            }
+            dirLock.writeLock().lock();
+            try {
+                if (growBucket(h, key, uid)) {
+                    return;
+                }
+            } finally {
+                dirLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // 沿溢出链插入第一个未满的桶，都已满时返回false
+    private boolean tryInsert(long bucketUid, long key, long uid) throws Exception {
+        while (bucketUid != 0) {
+            DataItem di = dm.read(bucketUid);
+            try {
+                di.before();
+                SubArray raw = di.data();
+                if (Bucket.append(raw, key, uid)) {
+                    di.after(TransactionManagerImpl.SUPER_XID);
+                    return true;
+                }
+                bucketUid = Bucket.getRawOverflow(raw);
+                di.unBefore();
+            } finally {
+                di.release();
+            }
+        }
+        return false;
+    }
+
+    // 持有目录的写锁，没有其他线程在操作桶
+    // 分裂键所在的桶后返回false，由调用者重试；无法分裂时挂上带有该键的溢出桶并返回true
+    private boolean growBucket(long h, long key, long uid) throws Exception {
+        int s = slot(h, globalDepth);
+        long bucketUid = dir[s];
+        DataItem di = dm.read(bucketUid);
+        try {
+            SubArray raw = di.data();
+            if (Bucket.getRawCount(raw) < Bucket.CAPACITY) {
+                return false;
+            }
+            int depth = Bucket.getRawDepth(raw);
+            long overflow = Bucket.getRawOverflow(raw);
+            if (overflow == 0 && depth < MAX_DEPTH && !sameHash(raw, h)) {
+                split(di, s, depth);
+                return false;
+            }
+            if (overflow != 0 && tryInsert(overflow, key, uid)) {
+                return true;
+            }
+            byte[] ofRaw = Bucket.newRaw(depth, overflow);
+            Bucket.append(new SubArray(ofRaw, 0, ofRaw.length), key, uid);
+            long ofUid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, ofRaw);
+            di.before();
+            Bucket.setRawOverflow(raw, ofUid);
+            di.after(TransactionManagerImpl.SUPER_XID);
+            return true;
+        } finally {
+            di.release();
+        }
+    }
+
+    // 桶中所有键和新键的哈希值都相同时分裂无济于事
+    private boolean sameHash(SubArray raw, long h) {
+        int count = Bucket.getRawCount(raw);
+        for (int i = 0; i < count; i++) {
+            if (hash(Bucket.getRawKthKey(raw, i)) != h) return false;
+        }
+        return true;
+    }
+
+    // 把桶中第depth位为1的键移入新桶，两个桶的局部深度都加一
+    private void split(DataItem di, int s, int depth) throws Exception {
+        if (depth == globalDepth) {
+            doubleDirectory();
+        }
+
+        byte[] move = Bucket.newRaw(depth + 1, 0);
+        SubArray moveRaw = new SubArray(move, 0, move.length);
+        SubArray raw = di.data();
+        int count = Bucket.getRawCount(raw);
+        for (int i = 0; i < count; i++) {
+            long key = Bucket.getRawKthKey(raw, i);
+            if (((hash(key) >>> depth) & 1) == 1) {
+                Bucket.append(moveRaw, key, Bucket.getRawKthUid(raw, i));
+            }
+        }
+        long newUid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, move);
+        int pattern = slot(s, depth);
+        setPending(di.getUid(), newUid, pattern, depth);
+        completeSplit(di.getUid(), newUid, pattern, depth);
+    }
+
+    // 低depth位为pattern且第depth位为1的目录项指向新桶，原桶只保留第depth位为0的键
+    // 重复执行的结果相同，崩溃恢复后可以再次执行
+    private void completeSplit(long oldUid, long newUid, int pattern, int depth) throws Exception {
+        int first = pattern | (1 << depth);
+        int step = 1 << (depth + 1);
+        for (int i = first; i < dir.length; i += step) {
+            dir[i] = newUid;
+        }
+        writeDirectory(first, dir.length);
+
+        byte[] stay = Bucket.newRaw(depth + 1, 0);
+        SubArray stayRaw = new SubArray(stay, 0, stay.length);
+        DataItem di = dm.read(oldUid);
+        try {
+            SubArray raw = di.data();
+            int count = Bucket.getRawCount(raw);
+            for (int i = 0; i < count; i++) {
+                long key = Bucket.getRawKthKey(raw, i);
+                if (((hash(key) >>> depth) & 1) == 0) {
+                    Bucket.append(stayRaw, key, Bucket.getRawKthUid(raw, i));
+                }
+            }
+            di.before();
+            System.arraycopy(stay, 0, raw.raw, raw.start, stay.length);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+        setPending(0, 0, 0, 0);
+    }
+
+    private void setPending(long oldUid, long newUid, int pattern, int depth) throws Exception {
+        ByteBuffer pending = ByteBuffer.allocate(PENDING_SIZE);
+        pending.putLong(oldUid).putLong(newUid).putInt(pattern).put((byte) depth);
+        bootDataItem.before();
+        SubArray boot = bootDataItem.data();
+        System.arraycopy(pending.array(), 0, boot.raw, boot.start + PENDING_OFFSET, PENDING_SIZE);
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    private void doubleDirectory() throws Exception {
+        int size = dir.length;
+        long[] newDir = Arrays.copyOf(dir, size * 2);
+        System.arraycopy(dir, 0, newDir, size, size);
+        dir = newDir;
+        writeDirectory(size, size * 2);
+        globalDepth++;
+
+        bootDataItem.before();
+        SubArray boot = bootDataItem.data();
+        boot.raw[boot.start + DEPTH_OFFSET] = (byte) globalDepth;
+        System.arraycopy(Parser.short2Byte((short) segments.size()), 0, boot.raw, boot.start + SEGMENTS_OFFSET, 2);
+        for (int i = 0; i < segments.size(); i++) {
+            System.arraycopy(Parser.long2Byte(segments.get(i)), 0, boot.raw, boot.start + SEGMENT_UID_OFFSET + i * 8, 8);
+        }
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    // 写入目录中[from, to)的项，需要时新建分段，新分段在启动数据项更新后才生效
+    private void writeDirectory(int from, int to) throws Exception {
+        for (int seg = from / SEGMENT_SIZE; seg * SEGMENT_SIZE < to; seg++) {
+            int start = Math.max(from, seg * SEGMENT_SIZE);
+            int end = Math.min(to, (seg + 1) * SEGMENT_SIZE);
+            if (seg == segments.size()) {
+                byte[] segment = new byte[8 * SEGMENT_SIZE];
+                for (int i = start; i < end; i++) {
+                    System.arraycopy(Parser.long2Byte(dir[i]), 0, segment, (i - seg * SEGMENT_SIZE) * 8, 8);
+                }
+                segments.add(dm.insertInternal(TransactionManagerImpl.SUPER_XID, segment));
+                continue;
+            }
+            DataItem di = dm.read(segments.get(seg));
+            try {
+                di.before();
+                SubArray sa = di.data();
+                for (int i = start; i < end; i++) {
+                    System.arraycopy(Parser.long2Byte(dir[i]), 0, sa.raw, sa.start + (i - seg * SEGMENT_SIZE) * 8, 8);
+                }
+                di.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                di.release();
+            }
+        }
+    }
+
+    public void close() {
+        bootDataItem.release();
+    }
+}
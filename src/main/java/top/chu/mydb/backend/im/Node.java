@@ -0,0 +1,319 @@
+package top.chu.mydb.backend.im;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
+import top.chu.mydb.backend.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * B+树的节点，以内部数据项的形式保存在DM中
+ * Node结构如下：
+ * [Level][KeyNumber][SiblingUid]
+ * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * Level 1字节，叶子为0
+ * SiblingUid 同一层右侧的兄弟节点，0表示没有
+ * 叶子中Son为索引的值，Key为键；内部节点中SonI的所有键不大于KeyI，不小于KeyI-1，
+ * 同一层最右侧节点的最后一个Key为Long.MAX_VALUE
+ * 对节点的每次读写都在DataItem的锁内完成，不同时持有多个节点的锁，持有锁时不写入新的数据项，
+ * 节点分裂后新节点由SiblingUid链接，读写者发现要找的键不在当前节点时向右移动
+ */
+public class Node {
+    static final int LEVEL_OFFSET = 0;
+    static final int NO_KEYS_OFFSET = LEVEL_OFFSET + 1;
+    static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;
+    static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
+
+    static final int BALANCE_NUMBER = 32;
+    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+
+    BPlusTree tree;
+    DataItem dataItem;
+    SubArray raw;
+    long uid;
+
+    static void setRawLevel(SubArray raw, int level) {
+        raw.raw[raw.start + LEVEL_OFFSET] = (byte) level;
+    }
+
+    static int getRawLevel(SubArray raw) {
+        return raw.raw[raw.start + LEVEL_OFFSET];
+    }
+
+    static void setRawNoKeys(SubArray raw, int noKeys) {
+        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+    }
+
+    static int getRawNoKeys(SubArray raw) {
+        return Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+    }
+
+    static void setRawSibling(SubArray raw, long sibling) {
+        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+    }
+
+    static long getRawSibling(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+    }
+
+    static void setRawKthSon(SubArray raw, long uid, int kth) {
+        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    }
+
+    static long getRawKthSon(SubArray raw, int kth) {
+        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    static void setRawKthKey(SubArray raw, long key, int kth) {
+        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
+        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    }
+
+    static long getRawKthKey(SubArray raw, int kth) {
+        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    // 把from中第kth个及之后的键值对拷贝到to的开头
+    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
+        int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+    }
+
+    // 第kth个及之后的键值对右移一位
+    static void shiftRawKth(SubArray raw, int kth) {
+        int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
+        int end = raw.start + NODE_SIZE - 1;
+        for (int i = end; i >= begin; i--) {
+            raw.raw[i] = raw.raw[i - (8 * 2)];
+        }
+    }
+
+    // 根节点分裂后的新根
+    static byte[] newRootRaw(int level, long left, long right, long key) {
+        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        setRawLevel(raw, level);
+        setRawNoKeys(raw, 2);
+        setRawSibling(raw, 0);
+        setRawKthSon(raw, left, 0);
+        setRawKthKey(raw, key, 0);
+        setRawKthSon(raw, right, 1);
+        setRawKthKey(raw, Long.MAX_VALUE, 1);
+        return raw.raw;
+    }
+
+    static byte[] newNilRootRaw() {
+        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        setRawLevel(raw, 0);
+        setRawNoKeys(raw, 0);
+        setRawSibling(raw, 0);
+        return raw.raw;
+    }
+
+    static Node loadNode(BPlusTree tree, long uid) throws Exception {
+        DataItem di = tree.dm.read(uid);
+        assert di != null;
+        Node n = new Node();
+        n.tree = tree;
+        n.dataItem = di;
+        n.raw = di.data();
+        n.uid = uid;
+        return n;
+    }
+
+    public void release() {
+        dataItem.release();
+    }
+
+    public int level() {
+        dataItem.rLock();
+        try {
+            return getRawLevel(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class SearchNextRes {
+        long uid;
+        long siblingUid;
+    }
+
+    // 内部节点中可能包含key的最左侧的子节点，key大于本节点所有的键时返回兄弟节点
+    public SearchNextRes searchNext(long key) {
+        dataItem.rLock();
+        try {
+            SearchNextRes res = new SearchNextRes();
+            int noKeys = getRawNoKeys(raw);
+            for (int i = 0; i < noKeys; i++) {
+                long ik = getRawKthKey(raw, i);
+                if (key <= ik) {
+                    res.uid = getRawKthSon(raw, i);
+                    res.siblingUid = 0;
+                    return res;
+                }
+            }
+            res.uid = 0;
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class LeafSearchRangeRes {
+        List<Long> uids;
+        long siblingUid;
+    }
+
+    // 叶子中键在[leftKey, rightKey]中的值，本节点的键都不大于rightKey时还需继续查找兄弟节点
+    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while (kth < noKeys) {
+                long ik = getRawKthKey(raw, kth);
+                if (ik >= leftKey) {
+                    break;
+                }
+                kth++;
+            }
+            List<Long> uids = new ArrayList<>();
+            while (kth < noKeys) {
+                long ik = getRawKthKey(raw, kth);
+                if (ik <= rightKey) {
+                    uids.add(getRawKthSon(raw, kth));
+                    kth++;
+                } else {
+                    break;
+                }
+            }
+            long siblingUid = 0;
+            if (kth == noKeys) {
+                siblingUid = getRawSibling(raw);
+            }
+            LeafSearchRangeRes res = new LeafSearchRangeRes();
+            res.uids = uids;
+            res.siblingUid = siblingUid;
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class InsertAndSplitRes {
+        long siblingUid, newSon, newKey;
+    }
+
+    // 叶子中插入键值对；内部节点中在子节点left之后插入它分裂出的节点uid，key为left新的上界
+    // 不属于本节点时返回兄弟节点，插入后节点已满则分裂
+    // 持有页锁时不能调用insertInternal（它会锁住另一页），因此先在本节点的副本上插入并分裂，
+    // 把新节点写入DM后再锁住本节点；节点在此期间被修改过时丢弃新节点重试
+    public InsertAndSplitRes insertAndSplit(long left, long uid, long key) throws Exception {
+        while (true) {
+            byte[] snapshot;
+            dataItem.rLock();
+            try {
+                snapshot = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+            } finally {
+                dataItem.rUnLock();
+            }
+
+            InsertAndSplitRes res = new InsertAndSplitRes();
+            SubArray copy = new SubArray(snapshot.clone(), 0, snapshot.length);
+            boolean success = getRawLevel(copy) == 0 ? insertLeaf(copy, uid, key) : insertSon(copy, left, uid, key);
+            if (!success) {
+                res.siblingUid = getRawSibling(copy);
+                return res;
+            }
+            if (needSplit(copy)) {
+                SplitRes r = split(copy);
+                res.newSon = r.newSon;
+                res.newKey = r.newKey;
+            }
+
+            dataItem.before();
+            if (!Arrays.equals(raw.raw, raw.start, raw.end, snapshot, 0, snapshot.length)) {
+                dataItem.unBefore();
+                if (res.newSon != 0) {
+                    // 新节点还没有被任何节点引用
+                    tree.dm.free(res.newSon);
+                }
+                continue;
+            }
+            System.arraycopy(copy.raw, 0, raw.raw, raw.start, snapshot.length);
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+            return res;
+        }
+    }
+
+    private static boolean insertLeaf(SubArray raw, long uid, long key) {
+        int noKeys = getRawNoKeys(raw);
+        int kth = 0;
+        while (kth < noKeys) {
+            long ik = getRawKthKey(raw, kth);
+            if (ik < key) {
+                kth++;
+            } else {
+                break;
+            }
+        }
+        if (kth == noKeys && getRawSibling(raw) != 0) return false;
+
+        shiftRawKth(raw, kth);
+        setRawKthKey(raw, key, kth);
+        setRawKthSon(raw, uid, kth);
+        setRawNoKeys(raw, noKeys + 1);
+        return true;
+    }
+
+    // 按子节点的UID定位，键相同的子节点可能有多个
+    private static boolean insertSon(SubArray raw, long left, long uid, long key) {
+        int noKeys = getRawNoKeys(raw);
+        int kth = 0;
+        while (kth < noKeys && getRawKthSon(raw, kth) != left) {
+            kth++;
+        }
+        if (kth == noKeys) return false;
+
+        long kk = getRawKthKey(raw, kth);
+        setRawKthKey(raw, key, kth);
+        shiftRawKth(raw, kth + 1);
+        setRawKthKey(raw, kk, kth + 1);
+        setRawKthSon(raw, uid, kth + 1);
+        setRawNoKeys(raw, noKeys + 1);
+        return true;
+    }
+
+    private static boolean needSplit(SubArray raw) {
+        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+    }
+
+    class SplitRes {
+        long newSon, newKey;
+    }
+
+    // 后一半移入新节点并写入DM，副本中本节点的兄弟指向它
+    private SplitRes split(SubArray raw) throws Exception {
+        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        setRawLevel(nodeRaw, getRawLevel(raw));
+        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawSibling(nodeRaw, getRawSibling(raw));
+        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        long son = tree.dm.insertInternal(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawSibling(raw, son);
+
+        // 本节点最后一个键作为它在父节点中的上界
+        SplitRes res = new SplitRes();
+        res.newSon = son;
+        res.newKey = getRawKthKey(raw, BALANCE_NUMBER - 1);
+        return res;
+    }
+}
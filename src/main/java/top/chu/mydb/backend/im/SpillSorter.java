@@ -0,0 +1,177 @@
+package top.chu.mydb.backend.im;
+
+import top.chu.mydb.backend.utils.Panic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 为BulkLoader排序(key, uid)
+ * 内存中攒满runSize对后按键排序写成一个临时文件，最后对所有文件做多路归并，
+ * 只有一个批次时不写文件，直接交给BulkLoader
+ */
+public class SpillSorter {
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private File dir;
+    private long[] keys;
+    private long[] uids;
+    private int size;
+    private List<File> runs;
+
+    public SpillSorter(File dir) {
+        this(dir, DEFAULT_RUN_SIZE);
+    }
+
+    public SpillSorter(File dir, int runSize) {
+        this.dir = dir;
+        this.keys = new long[runSize];
+        this.uids = new long[runSize];
+        this.runs = new ArrayList<>();
+    }
+
+    public void add(long key, long uid) {
+        if (size == keys.length) {
+            spill();
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size++;
+    }
+
+    // 按键的顺序把所有的对交给loader，之后删除临时文件
+    public void drainTo(BulkLoader loader) throws Exception {
+        if (runs.isEmpty()) {
+            sort(0, size - 1);
+            for (int i = 0; i < size; i++) {
+                loader.add(keys[i], uids[i]);
+            }
+            size = 0;
+            return;
+        }
+        if (size > 0) {
+            spill();
+        }
+        List<Run> readers = new ArrayList<>();
+        try {
+            PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> Long.compare(a.key, b.key));
+            for (File f : runs) {
+                Run r = new Run(f);
+                readers.add(r);
+                if (r.next()) {
+                    heap.add(r);
+                }
+            }
+            while (!heap.isEmpty()) {
+                Run r = heap.poll();
+                loader.add(r.key, r.uid);
+                if (r.next()) {
+                    heap.add(r);
+                }
+            }
+        } finally {
+            for (Run r : readers) {
+                r.close();
+            }
+            for (File f : runs) {
+                f.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    private void spill() {
+        sort(0, size - 1);
+        try {
+            File f = File.createTempFile("spill", ".run", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE))) {
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(uids[i]);
+                }
+            }
+            runs.add(f);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        size = 0;
+    }
+
+    // 按键对两个数组一起做快速排序，键相同的对之间的顺序不重要
+    private void sort(int lo, int hi) {
+        while (lo < hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                        swap(j - 1, j);
+                    }
+                }
+                return;
+            }
+            long pivot = keys[lo + (hi - lo) / 2];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // 先递归较短的一侧，栈深度为O(log n)
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        long u = uids[i];
+        uids[i] = uids[j];
+        uids[j] = u;
+    }
+
+    private static class Run {
+        DataInputStream in;
+        long key, uid;
+
+        Run(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            try {
+                key = in.readLong();
+                uid = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package top.chu.mydb.backend.tbm;
+
+import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.common.Error;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 启动文件，记录表链表头的UID
+ * 更新时先写入临时文件并刷盘，再原子地替换启动文件并刷盘目录，崩溃后启动文件总是完整的
+ */
+public class Booter {
+    public static final String BOOTER_SUFFIX = ".bt";
+    public static final String BOOTER_TMP_SUFFIX = ".bt_tmp";
+
+    String path;
+    File file;
+
+    public static Booter create(String path) {
+        removeBadTmp(path);
+        File f = new File(path + BOOTER_SUFFIX);
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return new Booter(path, f);
+    }
+
+    public static Booter open(String path) {
+        removeBadTmp(path);
+        File f = new File(path + BOOTER_SUFFIX);
+        if (!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return new Booter(path, f);
+    }
+
+    // 替换前崩溃留下的临时文件
+    private static void removeBadTmp(String path) {
+        new File(path + BOOTER_TMP_SUFFIX).delete();
+    }
+
+    private Booter(String path, File file) {
+        this.path = path;
+        this.file = file;
+    }
+
+    public byte[] load() {
+        byte[] buf = null;
+        try {
+            buf = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf;
+    }
+
+    public void update(byte[] data) {
+        File tmp = new File(path + BOOTER_TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        // 替换本身要等目录落盘后才持久
+        syncDir();
+    }
+
+    private void syncDir() {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try (FileChannel dc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dc.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持对目录刷盘
+        }
+    }
+}
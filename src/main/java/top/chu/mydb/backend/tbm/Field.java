@@ -0,0 +1,63 @@
+package top.chu.mydb.backend.tbm;
+
+import top.chu.mydb.common.Error;
+
+/**
+ * 表的一列，int32、int64为定长列，string为变长列
+ * 定长列的offset为它在行中的偏移，变长列的offset为它在变长列中的序号
+ */
+public class Field {
+    public static final String INT32 = "int32";
+    public static final String INT64 = "int64";
+    public static final String STRING = "string";
+
+    static final byte TYPE_INT32 = 0;
+    static final byte TYPE_INT64 = 1;
+    static final byte TYPE_STRING = 2;
+
+    String name;
+    byte type;
+    int offset;
+
+    Field(String name, byte type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    static byte typeCode(String type) throws Exception {
+        switch (type) {
+            case INT32:
+                return TYPE_INT32;
+            case INT64:
+                return TYPE_INT64;
+            case STRING:
+                return TYPE_STRING;
+            default:
+                throw Error.InvalidFieldException;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String type() {
+        switch (type) {
+            case TYPE_INT32:
+                return INT32;
+            case TYPE_INT64:
+                return INT64;
+            default:
+                return STRING;
+        }
+    }
+
+    boolean isFixed() {
+        return type != TYPE_STRING;
+    }
+
+    // 定长列的宽度
+    int width() {
+        return type == TYPE_INT32 ? 4 : 8;
+    }
+}
@@ -0,0 +1,281 @@
+package top.chu.mydb.backend.tbm;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
+import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.common.Error;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 表的模式，以内部数据项的形式保存在DM中，所有表经NextUid连成链表，链表头记录在启动文件中
+ * Table结构：
+ * [TableId][NextUid][TableName][FieldNumber][FieldName0][FieldType0]...[FieldNameN][FieldTypeN]
+ * 名字以[Length 2][UTF-8]保存，FieldType 1字节
+ * 行的格式：
+ * [TableId][定长列...][变长列的结束偏移...][变长列的内容...]
+ * 定长列按声明顺序排在固定的偏移处；每个变长列的结束偏移2字节，相对于变长列内容的开头
+ * 读取一列时直接从页中的内容解析，不拷贝整行
+ * 不同表的行保存在同一批页中，扫描时按TableId区分
+ */
+public class Table {
+    static final int TABLE_ID_SIZE = 4;
+    private static final int MAX_VAR_LENGTH = 0xffff;
+
+    long uid;
+    int id;
+    long nextUid;
+    String name;
+    List<Field> fields;
+    int offsetTable; // 偏移表的开头，即定长列的结尾
+    int noVar; // 变长列的数量
+
+    static Table createTable(DataManager dm, int id, long nextUid, String name, String[] fieldNames, String[] fieldTypes) throws Exception {
+        if (fieldNames.length != fieldTypes.length || fieldNames.length == 0) {
+            throw Error.InvalidFieldException;
+        }
+        List<Field> fields = new ArrayList<>();
+        for (int i = 0; i < fieldNames.length; i++) {
+            for (Field f : fields) {
+                if (f.name.equals(fieldNames[i])) throw Error.InvalidFieldException;
+            }
+            fields.add(new Field(fieldNames[i], Field.typeCode(fieldTypes[i])));
+        }
+        Table t = new Table(id, nextUid, name, fields);
+        t.uid = dm.insertInternal(TransactionManagerImpl.SUPER_XID, t.raw());
+        return t;
+    }
+
+    static Table loadTable(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        byte[] raw;
+        try {
+            SubArray sa = di.data();
+            raw = Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        } finally {
+            di.release();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        int id = buf.getInt();
+        long nextUid = buf.getLong();
+        String name = readString(buf);
+        int noFields = buf.getShort();
+        List<Field> fields = new ArrayList<>();
+        for (int i = 0; i < noFields; i++) {
+            String fieldName = readString(buf);
+            fields.add(new Field(fieldName, buf.get()));
+        }
+        Table t = new Table(id, nextUid, name, fields);
+        t.uid = uid;
+        return t;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getShort() & 0xffff];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeBytes(Parser.short2Byte((short) b.length));
+        out.writeBytes(b);
+    }
+
+    // 按列的声明顺序排布定长列，变长列依次编号
+    private Table(int id, long nextUid, String name, List<Field> fields) {
+        this.id = id;
+        this.nextUid = nextUid;
+        this.name = name;
+        this.fields = fields;
+        int offset = TABLE_ID_SIZE;
+        for (Field f : fields) {
+            if (f.isFixed()) {
+                f.offset = offset;
+                offset += f.width();
+            } else {
+                f.offset = noVar++;
+            }
+        }
+        this.offsetTable = offset;
+    }
+
+    private byte[] raw() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(Parser.int2Byte(id));
+        out.writeBytes(Parser.long2Byte(nextUid));
+        writeString(out, name);
+        out.writeBytes(Parser.short2Byte((short) fields.size()));
+        for (Field f : fields) {
+            writeString(out, f.name);
+            out.write(f.type);
+        }
+        return out.toByteArray();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public List<Field> fields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public int fieldIndex(String fieldName) throws Exception {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).name.equals(fieldName)) return i;
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    // 行是否属于本表
+    public boolean belongs(SubArray row) {
+        return row.end - row.start >= TABLE_ID_SIZE && ByteBuffer.wrap(row.raw, row.start, TABLE_ID_SIZE).getInt() == id;
+    }
+
+    public int getInt(SubArray row, int field) {
+        return ByteBuffer.wrap(row.raw, row.start + fields.get(field).offset, 4).getInt();
+    }
+
+    public long getLong(SubArray row, int field) {
+        return ByteBuffer.wrap(row.raw, row.start + fields.get(field).offset, 8).getLong();
+    }
+
+    public String getString(SubArray row, int field) {
+        int k = fields.get(field).offset;
+        int begin = varBegin(row, k);
+        return new String(row.raw, row.start + begin, varEnd(row, k) - begin, StandardCharsets.UTF_8);
+    }
+
+    // 第k个变长列的内容在行中的范围
+    private int varBegin(SubArray row, int k) {
+        return k == 0 ? offsetTable + 2 * noVar : varEnd(row, k - 1);
+    }
+
+    private int varEnd(SubArray row, int k) {
+        int end = ByteBuffer.wrap(row.raw, row.start + offsetTable + 2 * k, 2).getShort() & 0xffff;
+        return offsetTable + 2 * noVar + end;
+    }
+
+    // values与列一一对应：int32为Integer，int64为Long或Integer，string为String
+    public byte[] encode(Object[] values) throws Exception {
+        if (values.length != fields.size()) {
+            throw Error.InvalidValuesException;
+        }
+        byte[][] vars = new byte[noVar][];
+        int varLength = 0;
+        for (int i = 0; i < values.length; i++) {
+            Field f = fields.get(i);
+            Object v = values[i];
+            boolean ok = f.type == Field.TYPE_INT32 ? v instanceof Integer
+                    : f.type == Field.TYPE_INT64 ? v instanceof Long || v instanceof Integer
+                    : v instanceof String;
+            if (!ok) {
+                throw Error.InvalidValuesException;
+            }
+            if (!f.isFixed()) {
+                vars[f.offset] = ((String) v).getBytes(StandardCharsets.UTF_8);
+                varLength += vars[f.offset].length;
+            }
+        }
+        if (varLength > MAX_VAR_LENGTH) {
+            throw Error.DataTooLargeException;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(offsetTable + 2 * noVar + varLength);
+        buf.putInt(id);
+        for (int i = 0; i < values.length; i++) {
+            Field f = fields.get(i);
+            if (f.type == Field.TYPE_INT32) {
+                buf.putInt(f.offset, (Integer) values[i]);
+            } else if (f.type == Field.TYPE_INT64) {
+                buf.putLong(f.offset, ((Number) values[i]).longValue());
+            }
+        }
+        buf.position(offsetTable);
+        int end = 0;
+        for (byte[] v : vars) {
+            end += v.length;
+            buf.putShort((short) end);
+        }
+        for (byte[] v : vars) {
+            buf.put(v);
+        }
+        return buf.array();
+    }
+
+    public Object[] decode(byte[] row) {
+        SubArray sa = new SubArray(row, 0, row.length);
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            switch (fields.get(i).type) {
+                case Field.TYPE_INT32:
+                    values[i] = getInt(sa, i);
+                    break;
+                case Field.TYPE_INT64:
+                    values[i] = getLong(sa, i);
+                    break;
+                default:
+                    values[i] = getString(sa, i);
+            }
+        }
+        return values;
+    }
+
+    // 只含指定列的视图，不写入目录；按视图的格式解码投影的结果
+    public Table project(String... fieldNames) throws Exception {
+        List<Field> projected = new ArrayList<>();
+        for (String fieldName : fieldNames) {
+            Field f = fields.get(fieldIndex(fieldName));
+            projected.add(new Field(f.name, f.type));
+        }
+        return new Table(id, 0, name, projected);
+    }
+
+    // 直接从页中的行拷贝view中的列，构造视图格式的行
+    Function<SubArray, byte[]> projector(Table view) throws Exception {
+        Field[] from = new Field[view.fields.size()];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = fields.get(fieldIndex(view.fields.get(i).name));
+        }
+        return row -> {
+            int[] begins = new int[view.noVar], ends = new int[view.noVar];
+            int varLength = 0;
+            for (int i = 0; i < from.length; i++) {
+                Field f = view.fields.get(i);
+                if (!f.isFixed()) {
+                    begins[f.offset] = varBegin(row, from[i].offset);
+                    ends[f.offset] = varEnd(row, from[i].offset);
+                    varLength += ends[f.offset] - begins[f.offset];
+                }
+            }
+            byte[] out = new byte[view.offsetTable + 2 * view.noVar + varLength];
+            System.arraycopy(row.raw, row.start, out, 0, TABLE_ID_SIZE);
+            int pos = view.offsetTable + 2 * view.noVar;
+            for (int i = 0; i < from.length; i++) {
+                Field f = view.fields.get(i);
+                if (f.isFixed()) {
+                    System.arraycopy(row.raw, row.start + from[i].offset, out, f.offset, f.width());
+                }
+            }
+            for (int k = 0; k < view.noVar; k++) {
+                int length = ends[k] - begins[k];
+                System.arraycopy(row.raw, row.start + begins[k], out, pos, length);
+                pos += length;
+                int end = pos - (view.offsetTable + 2 * view.noVar);
+                out[view.offsetTable + 2 * k] = (byte) (end >>> 8);
+                out[view.offsetTable + 2 * k + 1] = (byte) end;
+            }
+            return out;
+        };
+    }
+}
@@ -0,0 +1,34 @@
+package top.chu.mydb.backend.tbm;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.backend.vm.RowScanner;
+import top.chu.mydb.backend.vm.VersionManager;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+public interface TableManager {
+    Table createTable(String name, String[] fieldNames, String[] fieldTypes) throws Exception; // 建表不属于事务，立即持久化
+    Table table(String name) throws Exception;
+    List<Table> tables();
+
+    long insert(long xid, Table table, Object[] values) throws Exception;
+    Object[] read(long xid, Table table, long uid) throws Exception; // 不可见或不属于该表时返回null
+    boolean update(long xid, Table table, long uid, Object[] values) throws Exception; // 行不可见或不属于该表时返回false
+    boolean delete(long xid, Table table, long uid) throws Exception; // 同上
+    RowScanner scan(long xid, Table table, Predicate<SubArray> filter) throws Exception; // 只扫描该表的行，filter可为null
+    RowScanner scan(long xid, Table table, Predicate<SubArray> filter, Table view) throws Exception; // 结果只含view中的列，用view解码
+
+    public static TableManager create(String path, VersionManager vm, DataManager dm) {
+        Booter booter = Booter.create(path);
+        booter.update(Parser.long2Byte(0));
+        return new TableManagerImpl(vm, dm, booter);
+    }
+
+    public static TableManager open(String path, VersionManager vm, DataManager dm) {
+        Booter booter = Booter.open(path);
+        return new TableManagerImpl(vm, dm, booter);
+    }
+}
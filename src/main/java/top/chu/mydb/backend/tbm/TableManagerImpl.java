@@ -0,0 +1,152 @@
+package top.chu.mydb.backend.tbm;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.backend.vm.RowScanner;
+import top.chu.mydb.backend.vm.VersionManager;
+import top.chu.mydb.common.Error;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * 启动时沿链表载入所有表的模式并缓存，行的读写交给VM
+ * 建表时新表插在链表头：先以SUPER_XID写入新表，做检查点保证它已落盘，再更新启动文件
+ */
+public class TableManagerImpl implements TableManager {
+    VersionManager vm;
+    DataManager dm;
+    private Booter booter;
+    private Map<String, Table> tableCache;
+    private Lock lock;
+
+    TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
+        this.vm = vm;
+        this.dm = dm;
+        this.booter = booter;
+        this.tableCache = new HashMap<>();
+        this.lock = new ReentrantLock();
+        loadTables();
+    }
+
+    private void loadTables() {
+        long uid = firstTableUid();
+        try {
+            while (uid != 0) {
+                Table t = Table.loadTable(dm, uid);
+                tableCache.put(t.name, t);
+                uid = t.nextUid;
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    private long firstTableUid() {
+        return Parser.parseLong(booter.load());
+    }
+
+    @Override
+    public Table createTable(String name, String[] fieldNames, String[] fieldTypes) throws Exception {
+        lock.lock();
+        try {
+            if (tableCache.containsKey(name)) {
+                throw Error.DuplicatedTableException;
+            }
+            int id = 1;
+            for (Table t : tableCache.values()) {
+                id = Math.max(id, t.id + 1);
+            }
+            Table table = Table.createTable(dm, id, firstTableUid(), name, fieldNames, fieldTypes);
+            // 建表很少发生，直接做检查点让新表落盘
+            dm.checkpoint();
+            booter.update(Parser.long2Byte(table.uid));
+            tableCache.put(name, table);
+            return table;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Table table(String name) throws Exception {
+        lock.lock();
+        try {
+            Table t = tableCache.get(name);
+            if (t == null) {
+                throw Error.TableNotFoundException;
+            }
+            return t;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long insert(long xid, Table table, Object[] values) throws Exception {
+        return vm.insert(xid, table.encode(values));
+    }
+
+    @Override
+    public Object[] read(long xid, Table table, long uid) throws Exception {
+        byte[] row = vm.read(xid, uid);
+        if (row == null || !table.belongs(new SubArray(row, 0, row.length))) {
+            return null;
+        }
+        return table.decode(row);
+    }
+
+    @Override
+    public boolean update(long xid, Table table, long uid, Object[] values) throws Exception {
+        byte[] raw = table.encode(values);
+        if (!belongs(xid, table, uid)) {
+            return false;
+        }
+        return vm.update(xid, uid, raw);
+    }
+
+    @Override
+    public boolean delete(long xid, Table table, long uid) throws Exception {
+        if (!belongs(xid, table, uid)) {
+            return false;
+        }
+        return vm.delete(xid, uid);
+    }
+
+    // 行的TableId不会改变，检查xid可见的当前版本即可
+    private boolean belongs(long xid, Table table, long uid) throws Exception {
+        byte[] row = vm.read(xid, uid);
+        return row != null && table.belongs(new SubArray(row, 0, row.length));
+    }
+
+    @Override
+    public RowScanner scan(long xid, Table table, Predicate<SubArray> filter) throws Exception {
+        return vm.scan(xid, tableFilter(table, filter));
+    }
+
+    @Override
+    public RowScanner scan(long xid, Table table, Predicate<SubArray> filter, Table view) throws Exception {
+        return vm.scan(xid, tableFilter(table, filter), table.projector(view));
+    }
+
+    private Predicate<SubArray> tableFilter(Table table, Predicate<SubArray> filter) {
+        return filter == null ? table::belongs : row -> table.belongs(row) && filter.test(row);
+    }
+}
@@ -0,0 +1,110 @@
+package top.chu.mydb.backend.tm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * 内存中的事务状态表，每个事务2bit，每个long存32个事务
+ * 按块分配，扩容时只追加新块而不拷贝旧数据，冻结时整块丢弃
+ * 小于冻结边界base的事务都已结束，其中被取消的事务按升序记录在aborted中，其余视为已提交
+ * 读取无锁：状态以CAS发布，以 getAcquire 读取，
+ * 读到某事务为已提交的线程一定能看到该事务在提交之前写下的全部数据
+ */
+class StatusTable {
+    static final int CHUNK_SHIFT = 16;
+    static final long CHUNK_XIDS = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_XIDS - 1;
+    private static final int WORDS = (int) (CHUNK_XIDS >>> 5);
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // 三者一起替换，读者总能看到一致的冻结边界和状态块
+    private static class State {
+        long[][] chunks; // 以xid >>> CHUNK_SHIFT为下标，冻结部分为null
+        long base;
+        long[] aborted;
+
+        State(long[][] chunks, long base, long[] aborted) {
+            this.chunks = chunks;
+            this.base = base;
+            this.aborted = aborted;
+        }
+    }
+
+    private volatile State state = new State(new long[0][], 0, new long[0]);
+
+    // 超出表范围的事务视为active
+    byte get(long xid) {
+        State st = state;
+        if (xid < st.base) {
+            return Arrays.binarySearch(st.aborted, xid) >= 0
+                    ? TransactionManagerImpl.FIELD_TRAN_ABORTED
+                    : TransactionManagerImpl.FIELD_TRAN_COMMITED;
+        }
+        int c = (int) (xid >>> CHUNK_SHIFT);
+        if (c >= st.chunks.length) {
+            return TransactionManagerImpl.FIELD_TRAN_ACTIVE;
+        }
+        long w = (long) LONGS.getAcquire(st.chunks[c], word(xid));
+        return (byte) ((w >>> shift(xid)) & 3);
+    }
+
+    // 只会设置未冻结的事务
+    void set(long xid, byte status) {
+        long[] chunk = chunk(xid);
+        int i = word(xid);
+        int sh = shift(xid);
+        while (true) {
+            long old = (long) LONGS.getVolatile(chunk, i);
+            long w = (old & ~(3L << sh)) | ((long) status << sh);
+            if (LONGS.compareAndSet(chunk, i, old, w)) {
+                return;
+            }
+        }
+    }
+
+    long base() {
+        return state.base;
+    }
+
+    long[] aborted() {
+        return state.aborted;
+    }
+
+    // 设置冻结边界，base须按块对齐
+    synchronized void freeze(long base, long[] aborted) {
+        State st = state;
+        long[][] cs = st.chunks.clone();
+        for (int c = 0; c < Math.min(cs.length, base >>> CHUNK_SHIFT); c++) {
+            cs[c] = null;
+        }
+        state = new State(cs, base, aborted);
+    }
+
+    private long[] chunk(long xid) {
+        int c = (int) (xid >>> CHUNK_SHIFT);
+        State st = state;
+        if (c < st.chunks.length) {
+            return st.chunks[c];
+        }
+        synchronized (this) {
+            st = state;
+            if (c >= st.chunks.length) {
+                long[][] cs = Arrays.copyOf(st.chunks, Math.max(c + 1, st.chunks.length * 2));
+                for (int k = st.chunks.length; k < cs.length; k++) {
+                    cs[k] = new long[WORDS];
+                }
+                state = st = new State(cs, st.base, st.aborted);
+            }
+            return st.chunks[c];
+        }
+    }
+
+    private static int word(long xid) {
+        return (int) ((xid & CHUNK_MASK) >>> 5);
+    }
+
+    private static int shift(long xid) {
+        return (int) ((xid & 31) << 1);
+    }
+}
@@ -1,25 +1,33 @@
 package top.chu.mydb.backend.tm;
 
+import top.chu.mydb.backend.common.Durability;
 import top.chu.mydb.backend.utils.Panic;
 import top.chu.mydb.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 public interface TransactionManager {
     long begin(); // 开启一个新事务
     void commit(long xid); // 提交一个事务
+    void commit(long xid, Durability durability); // 以指定的持久化策略提交一个事务
     void abort(long xid); // 取消一个事务
+    void commitLazily(long xid); // 提交状态已由日志保证持久，只更新内存，文件在flush时写出
+    void abortLazily(long xid); // 取消状态已由日志保证持久，只更新内存，文件在flush时写出
     boolean isActive(long xid); // 查询一个事务是否是正在进行的状态
     boolean isCommitted(long xid); // 查询一个事务是否是已提交
     boolean isAborted(long xid); // 查询一个事务是否是已取消
+    void flush(); // 暂存的事务状态写入文件并刷盘
+    void freeze(long horizon); // 小于horizon的事务都已结束，冻结它们的状态并截断文件
+    Durability durability(); // 默认的持久化策略
+    long maxXid(); // 已分配的最大xid
     void close(); // 关闭TM
 
     public static TransactionManagerImpl create(String path) {
+        return create(path, Durability.SYNC);
+    }
+
+    public static TransactionManagerImpl create(String path, Durability durability) {
         File f = new File(path + TransactionManagerImpl.XID_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -33,28 +41,14 @@ public interface TransactionManager {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        // 写空文件头
-        ByteBuffer buf = ByteBuffer.wrap(new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH]);
-        try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(XidFile.create(f), durability);
     }
 
     public static TransactionManagerImpl open(String path) {
+        return open(path, Durability.SYNC);
+    }
+
+    public static TransactionManagerImpl open(String path, Durability durability) {
         File f = new File(path + TransactionManagerImpl.XID_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -63,15 +57,6 @@ public interface TransactionManager {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(XidFile.open(f), durability);
     }
-}
\ No newline at end of file
+}
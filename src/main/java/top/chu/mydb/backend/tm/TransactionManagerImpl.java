@@ -1,23 +1,29 @@
 package top.chu.mydb.backend.tm;
 
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.common.Syncer;
 import top.chu.mydb.backend.utils.Panic;
-import top.chu.mydb.backend.utils.Parser;
-import top.chu.mydb.common.Error;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 所有事务状态在打开时读入内存中的 StatusTable，查询状态不访问文件
+ * 状态改变时先更新内存再写入文件，是否等待刷盘由 Durability 决定
+ * 通过DM提交或取消的事务在日志中有对应的记录，状态只记下待写的事务，由 flush() 统一写入并刷盘，
+ * 检查点在回收日志之前调用 flush()；PERIODIC 模式下直接使用TM提交的事务同样延迟写入
+ * 文件格式见 XidFile
+ */
 public class TransactionManagerImpl implements TransactionManager {
 
-    // XID文件头长度，记录XID文件管理的事务个数
-    static final int LEN_XID_HEADER_LENGTH = 8;
-
-    // 每个事务占用长度
-    public static final int XID_FIELD_SIZE = 1;
+    // 每次预分配的事务个数
+    static final int XID_CHUNK = 4096;
 
     // 事务的三种状态
     public static final byte FIELD_TRAN_ACTIVE = 0;
@@ -30,124 +36,216 @@ public class TransactionManagerImpl implements TransactionManager {
     // XID文件后缀
     static final String XID_SUFFIX = ".xid";
 
-    private RandomAccessFile file;
+    private XidFile xf;
+
+    private Lock fileLock; // 写文件和重写文件互斥
 
-    private FileChannel fc;
+    private AtomicLong xidCounter; // 已分配的最大xid
 
-    private long xidCounter;
+    private volatile long xidLimit; // 文件中已预分配并落盘的最大xid
 
     private Lock counterLock;
 
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    private Durability durability;
+
+    private Syncer syncer;
+
+    private StatusTable table;
+
+    private Set<Long> pending; // 状态尚未写入文件的事务
+
+    TransactionManagerImpl(XidFile xf, Durability durability) {
+        this.xf = xf;
+        this.durability = durability;
+        fileLock = new ReentrantLock();
         counterLock = new ReentrantLock();
-        checkXIDCounter();
+        syncer = new Syncer(this::force);
+        pending = ConcurrentHashMap.newKeySet();
+        table = new StatusTable();
+        xf.load(table);
+        // 预分配但未使用的xid在重启后直接跳过
+        xidLimit = xf.limit;
+        xidCounter = new AtomicLong(xidLimit);
     }
 
-    private void checkXIDCounter() {
-        long fileLen = 0;
-        try {
-            fileLen = file.length();
-        } catch (IOException e) {
-            Panic.panic(Error.BadXIDFileException);
-        }
-        if (fileLen < LEN_XID_HEADER_LENGTH) {
-            Panic.panic(Error.BadXIDFileException);
-        }
-
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+    private void force() {
+        fileLock.lock();
         try {
-            fc.position(0);
-            fc.read(buf);
+            xf.force();
         } catch (IOException e) {
             Panic.panic(e);
-        }
-
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
-            Panic.panic(Error.BadXIDFileException);
+        } finally {
+            fileLock.unlock();
         }
     }
 
-    // 根据事务id取得其在文件中的位置
-    private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    // 应当落盘的状态，待写的事务在文件中仍为active
+    private int fileStatus(long xid) {
+        return pending.contains(xid) ? FIELD_TRAN_ACTIVE : table.get(xid);
     }
 
-    // 根据xid更新文件中的事务状态
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-
-        try {
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 根据xid更新事务状态
+    private void updateXID(long xid, byte status, Durability d) {
+        table.set(xid, status);
+        if (d.mode() == Durability.Mode.PERIODIC && durability.mode() == Durability.Mode.PERIODIC) {
+            pending.add(xid);
+            return;
         }
+        writeXID(xid);
+        sync(d);
+    }
+
+    // 同一字节中的其他事务可能被并发修改，在锁内按内存中的最新状态写出整个字节
+    private void writeXID(long xid) {
+        fileLock.lock();
         try {
-            fc.force(false); // 强制将文件缓冲区的内容写入磁盘，false表示只写入文件内容，不写入元数据
-        } catch (IOException e) {
-            Panic.panic(e);
+            xf.writeStatus(xid, this::fileStatus);
+        } finally {
+            fileLock.unlock();
         }
     }
 
-    // 将xidCounter加一，并更新xid header的内容
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 按持久化策略决定是否等待刷盘
+    private void sync(Durability d) {
+        long ticket = syncer.written();
+        switch (d.mode()) {
+            case SYNC:
+                syncer.force(ticket);
+                break;
+            case GROUP:
+                syncer.sync(ticket);
+                break;
+            default:
+                break;
         }
+    }
 
+    /**
+     * 预分配下一批xid：文件以0（active）填充延长，再更新文件头并刷盘
+     * 无论持久化策略如何都必须刷盘，否则重启后可能重复分配已经写过数据的xid
+     * 文件头先于文件长度落盘时，打开时会补齐缺少的状态
+     */
+    private void extendXIDLimit() {
+        fileLock.lock();
         try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            xf.extend(xidLimit + XID_CHUNK);
+        } finally {
+            fileLock.unlock();
         }
+        syncer.force(syncer.written());
+        xidLimit = xf.limit;
     }
 
+    // 新事务的状态已预分配为active，开始事务只需在内存中分配xid
     @Override
     public long begin() {
-        counterLock.lock();
-        try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
-        } finally {
-            counterLock.unlock();
+        long xid = xidCounter.incrementAndGet();
+        if (xid > xidLimit) {
+            counterLock.lock();
+            try {
+                while (xid > xidLimit) {
+                    extendXIDLimit();
+                }
+            } finally {
+                counterLock.unlock();
+            }
         }
+        return xid;
+    }
+
+    @Override
+    public long maxXid() {
+        return xidCounter.get();
     }
 
     @Override
     public void commit(long xid) {
-        updateXID(xid, FIELD_TRAN_COMMITED);
+        commit(xid, durability);
+    }
+
+    @Override
+    public void commit(long xid, Durability d) {
+        updateXID(xid, FIELD_TRAN_COMMITED, d);
     }
 
     @Override
     public void abort(long xid) {
-        updateXID(xid, FIELD_TRAN_ABORTED);
+        updateXID(xid, FIELD_TRAN_ABORTED, durability);
     }
 
-    private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.allocate(XID_FIELD_SIZE);
+    @Override
+    public void commitLazily(long xid) {
+        // 恢复时可能读到已冻结事务的结束记录
+        if (xid < table.base()) return;
+        table.set(xid, FIELD_TRAN_COMMITED);
+        pending.add(xid);
+    }
+
+    @Override
+    public void abortLazily(long xid) {
+        if (xid < table.base()) return;
+        table.set(xid, FIELD_TRAN_ABORTED);
+        pending.add(xid);
+    }
+
+    @Override
+    public void flush() {
+        // 事务状态只会从active变为提交或取消一次，移出待写集合后写出即可
+        List<Long> snapshot = new ArrayList<>(pending);
+        pending.removeAll(snapshot);
+        for (long xid : snapshot) {
+            writeXID(xid);
+        }
+        syncer.force(syncer.written());
+    }
 
+    /**
+     * 冻结小于horizon的事务，调用者保证它们都已结束
+     * 冻结后其中被取消的事务记入文件头，其余视为已提交，文件中不再保存它们的状态
+     * 崩溃时遗留的active事务没有写下任何数据，冻结为已提交不影响可见性
+     * 边界按块对齐，不足一块或新增的取消记录比省下的状态还大时不做任何事
+     */
+    @Override
+    public void freeze(long horizon) {
+        long bound = Math.min(horizon, xidCounter.get() + 1);
+        for (long xid : pending) {
+            bound = Math.min(bound, xid);
+        }
+        long base = bound & ~(StatusTable.CHUNK_XIDS - 1);
+
+        fileLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            long oldBase = table.base();
+            if (base <= oldBase) {
+                return;
+            }
+            List<Long> aborted = new ArrayList<>();
+            for (long x : table.aborted()) {
+                aborted.add(x);
+            }
+            for (long x = Math.max(oldBase, 1); x < base; x++) {
+                if (table.get(x) == FIELD_TRAN_ABORTED) {
+                    aborted.add(x);
+                }
+            }
+            if ((aborted.size() - table.aborted().length) * 8L >= (base - oldBase) / 4) {
+                return;
+            }
+            long[] abortedArr = aborted.stream().mapToLong(Long::longValue).toArray();
+            xf.rewrite(base, abortedArr, this::fileStatus);
+            table.freeze(base, abortedArr);
+        } finally {
+            fileLock.unlock();
         }
-        return buf.array()[0] == status;
+    }
+
+    @Override
+    public Durability durability() {
+        return durability;
+    }
+
+    private boolean checkXID(long xid, byte status) {
+        return table.get(xid) == status;
     }
 
     @Override
@@ -170,11 +268,7 @@ public class TransactionManagerImpl implements TransactionManager {
 
     @Override
     public void close() {
-        try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        flush();
+        xf.close();
     }
 }
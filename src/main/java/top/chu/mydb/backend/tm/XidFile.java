@@ -0,0 +1,255 @@
+package top.chu.mydb.backend.tm;
+
+import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.backend.utils.Parser;
+import top.chu.mydb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongToIntFunction;
+
+/**
+ * XID文件格式
+ * [Magic] [Limit] [Base] [AbortedCount] [Aborted1] ... [AbortedN] [Status]
+ * Magic 8字节 "MYDBXID2"
+ * Limit 8字节 已预分配的最大xid
+ * Base 8字节 冻结边界，小于Base的事务都已结束，文件中不再保存它们的状态
+ * AbortedCount 4字节 小于Base且被取消的事务个数，其后按升序排列这些事务的xid
+ * Status 从Base开始每个事务2bit，每字节4个事务，低位在前
+ * 旧版本文件为 [Counter] [Status]，属于旧格式的数据库，打开时直接拒绝，不做任何修改
+ * 冻结时先写出完整的临时文件再原子替换
+ */
+class XidFile {
+    static final long MAGIC = 0x4d59444258494432L; // "MYDBXID2"
+    private static final int OF_LIMIT = 8;
+    private static final int OF_BASE = OF_LIMIT + 8;
+    private static final int OF_ABORTED_COUNT = OF_BASE + 8;
+    private static final int OF_ABORTED = OF_ABORTED_COUNT + 4;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private File f;
+    private RandomAccessFile raf;
+    FileChannel fc;
+    long limit;
+    long base;
+    long[] aborted;
+    private long statusOffset;
+
+    private XidFile(File f) {
+        this.f = f;
+    }
+
+    static XidFile create(File f) {
+        XidFile xf = new XidFile(f);
+        xf.write(f, 0, 0, new long[0], x -> TransactionManagerImpl.FIELD_TRAN_ACTIVE);
+        xf.openFile();
+        xf.readHeader();
+        return xf;
+    }
+
+    static XidFile open(File f) {
+        new File(f.getPath() + TMP_SUFFIX).delete();
+        XidFile xf = new XidFile(f);
+        xf.openFile();
+        if (!xf.isV2()) {
+            xf.close();
+            Panic.panic(Error.BadXIDFileException);
+        }
+        xf.readHeader();
+        return xf;
+    }
+
+    private void openFile() {
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private boolean isV2() {
+        try {
+            return fc.size() >= OF_ABORTED && Parser.parseLong(readAt(0, 8)) == MAGIC;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return false;
+        }
+    }
+
+    private void readHeader() {
+        try {
+            limit = Parser.parseLong(readAt(OF_LIMIT, 8));
+            base = Parser.parseLong(readAt(OF_BASE, 8));
+            int n = Parser.parseInt(readAt(OF_ABORTED_COUNT, 4));
+            if (limit < 0 || base < 0 || base % StatusTable.CHUNK_XIDS != 0 || n < 0) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+            aborted = new long[n];
+            ByteBuffer buf = ByteBuffer.wrap(readAt(OF_ABORTED, n * 8));
+            for (int i = 0; i < n; i++) {
+                aborted[i] = buf.getLong();
+            }
+            statusOffset = OF_ABORTED + 8L * n;
+            long end = statusEnd(limit);
+            if (fc.size() != end) {
+                // 文件长度和文件头不一定同时落盘，缺少的状态补为active
+                raf.setLength(end);
+                fc.force(false);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 把文件中的状态读入内存
+    void load(StatusTable table) {
+        table.freeze(base, aborted);
+        byte[] chunk = new byte[1 << 20];
+        long pos = statusOffset;
+        long end = statusEnd(limit);
+        long xid = base;
+        try {
+            while (pos < end) {
+                int len = (int) Math.min(chunk.length, end - pos);
+                ByteBuffer buf = ByteBuffer.wrap(chunk, 0, len);
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, pos + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+                for (int i = 0; i < len; i++) {
+                    for (int k = 0; k < 4; k++, xid++) {
+                        byte status = (byte) ((chunk[i] >>> (k << 1)) & 3);
+                        if (status != TransactionManagerImpl.FIELD_TRAN_ACTIVE) {
+                            table.set(xid, status);
+                        }
+                    }
+                }
+                pos += len;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 写出xid所在的字节，status给出同一字节内各事务此时应落盘的状态
+    void writeStatus(long xid, LongToIntFunction status) {
+        long first = xid & ~3L;
+        try {
+            fc.write(ByteBuffer.wrap(new byte[]{pack(first, status)}), statusOffset + (first - base) / 4);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 预分配到newLimit，调用者负责刷盘
+    void extend(long newLimit) {
+        try {
+            raf.setLength(statusEnd(newLimit));
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(newLimit)), OF_LIMIT);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        limit = newLimit;
+    }
+
+    // 以新的冻结边界重写整个文件，丢弃边界之前的状态
+    void rewrite(long newBase, long[] newAborted, LongToIntFunction status) {
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        write(tmp, limit, newBase, newAborted, status);
+        replace(tmp);
+        readHeader();
+    }
+
+    private void write(File target, long limit, long base, long[] aborted, LongToIntFunction status) {
+        try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.setLength(0);
+            FileChannel oc = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(OF_ABORTED + 8 * aborted.length);
+            header.putLong(MAGIC).putLong(limit).putLong(base).putInt(aborted.length);
+            for (long x : aborted) {
+                header.putLong(x);
+            }
+            header.flip();
+            oc.write(header, 0);
+
+            long pos = OF_ABORTED + 8L * aborted.length;
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            for (long x = base; x <= limit; x += 4) {
+                buf.put(pack(x, status));
+                if (!buf.hasRemaining()) {
+                    buf.flip();
+                    pos += oc.write(buf, pos);
+                    buf.clear();
+                }
+            }
+            buf.flip();
+            oc.write(buf, pos);
+            oc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void replace(File tmp) {
+        close();
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        syncDir();
+        openFile();
+    }
+
+    private byte pack(long first, LongToIntFunction status) {
+        int b = 0;
+        for (int k = 0; k < 4; k++) {
+            b |= (status.applyAsInt(first + k) & 3) << (k << 1);
+        }
+        return (byte) b;
+    }
+
+    private long statusEnd(long limit) {
+        return statusOffset + (limit - base) / 4 + 1;
+    }
+
+    private byte[] readAt(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, position + buf.position()) < 0) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+        }
+        return buf.array();
+    }
+
+    private void syncDir() {
+        File dir = f.getAbsoluteFile().getParentFile();
+        try (FileChannel dc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dc.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持对目录刷盘
+        }
+    }
+
+    void force() throws IOException {
+        fc.force(false);
+    }
+
+    void close() {
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -6,4 +6,12 @@ public class Types {
         long u1 = (long) offset;
         return u0 << 32 | u1;
     }
+
+    public static int uidToPgno(long uid) {
+        return (int) ((uid >>> 32) & ((1L << 32) - 1));
+    }
+
+    public static short uidToOffset(long uid) {
+        return (short) (uid & ((1L << 16) - 1));
+    }
 }
@@ -0,0 +1,44 @@
+package top.chu.mydb.backend.vm;
+
+/**
+ * 死锁处理策略，无论哪种策略，等锁超时都会放弃
+ * DETECT     开始等待时沿新等待者的等待路径检查是否成环，成环则新等待者放弃
+ * BACKGROUND 等待时不做检查，后台每隔interval毫秒检查所有等待路径，成环则取消环上最年轻的事务
+ * WAIT_DIE   只有比持有者和排在前面的等待者都老的事务才等待，否则立即放弃
+ * WOUND_WAIT 老事务使排在前面的年轻事务放弃（年轻事务正在等待或下次加锁时放弃），年轻事务等待老事务
+ * 以xid大小作为事务的年龄，xid越小越老
+ */
+public class DeadlockPolicy {
+    public enum Mode {
+        DETECT, BACKGROUND, WAIT_DIE, WOUND_WAIT
+    }
+
+    public static final DeadlockPolicy DETECT = new DeadlockPolicy(Mode.DETECT, 0);
+    public static final DeadlockPolicy WAIT_DIE = new DeadlockPolicy(Mode.WAIT_DIE, 0);
+    public static final DeadlockPolicy WOUND_WAIT = new DeadlockPolicy(Mode.WOUND_WAIT, 0);
+
+    public static DeadlockPolicy background(long interval) {
+        return new DeadlockPolicy(Mode.BACKGROUND, interval);
+    }
+
+    private Mode mode;
+    private long interval;
+
+    private DeadlockPolicy(Mode mode, long interval) {
+        this.mode = mode;
+        this.interval = interval;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public long interval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.BACKGROUND ? mode + " (every " + interval + "ms)" : mode.toString();
+    }
+}
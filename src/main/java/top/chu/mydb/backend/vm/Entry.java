@@ -3,23 +3,47 @@ package top.chu.mydb.backend.vm;
 import com.google.common.primitives.Bytes;
 import top.chu.mydb.backend.common.SubArray;
 import top.chu.mydb.backend.dm.dataItem.DataItem;
+import top.chu.mydb.backend.tm.TransactionManager;
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
 import top.chu.mydb.backend.utils.Parser;
 
 import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [NEXT] [FLAGS] [data]
+ * NEXT 更新产生的下一个（更新的）版本的UID，0表示没有
+ * FLAGS 1字节，FLAG_VERSION表示由更新产生的版本，否则为行首；其余各位为提示位
+ * 行的UID始终是行首的UID，读取时从它开始沿NEXT找到可见的版本
+ * 提示位：首次从TM查到XMIN/XMAX所属事务已提交或已取消后记在FLAGS中，之后的检查不再查询TM
+ * 提示位只记录不会再改变的状态，不写日志，只把页面标脏：丢失后重新查询即可；
+ * 提示的事务若在崩溃后被撤销，撤销它对该entry的修改时提示位也随之恢复
+ * XMAX改变时清除XMAX的提示位
  */
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN + 8;
-    private static final int OF_DATA = OF_XMAX + 8;
+    private static final int OF_NEXT = OF_XMAX + 8;
+    private static final int OF_FLAGS = OF_NEXT + 8;
+    private static final int OF_DATA = OF_FLAGS + 1;
+    static final int HEADER_LENGTH = OF_DATA;
+
+    private static final byte FLAG_VERSION = 1;
+    private static final byte HINT_XMIN_COMMITTED = 2;
+    private static final byte HINT_XMIN_ABORTED = 4;
+    private static final byte HINT_XMAX_COMMITTED = 8;
+    private static final byte HINT_XMAX_INVALID = 16; // XMAX所属事务已取消
+    private static final byte HINT_XMIN = HINT_XMIN_COMMITTED | HINT_XMIN_ABORTED;
+    private static final byte HINT_XMAX = HINT_XMAX_COMMITTED | HINT_XMAX_INVALID;
+
     private long uid;
     private DataItem dataItem;
     private VersionManager vm;
+    private boolean detached; // 不在VM的缓存中，释放时直接释放数据项
 
     public static Entry newEntry(VersionManager vm, DataItem dataItem, long uid) {
         Entry entry = new Entry();
@@ -29,17 +53,42 @@ public class Entry {
         return entry;
     }
 
+    // 不经过VM缓存的entry，包装调用者已经持有的数据项，数据项的引用交给entry
+    // 数据项由DM缓存保证每个UID只有一个，entry上的读写仍在同一把锁内
+    public static Entry newDetachedEntry(VersionManager vm, DataItem dataItem, long uid) {
+        Entry entry = newEntry(vm, dataItem, uid);
+        entry.detached = true;
+        return entry;
+    }
+
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl) vm).dm.read(uid);
+        if (di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
+        return wrapEntryRaw(xid, data, (byte) 0);
+    }
+
+    // 更新产生的新版本
+    public static byte[] wrapVersionRaw(long xid, byte[] data) {
+        return wrapEntryRaw(xid, data, FLAG_VERSION);
+    }
+
+    private static byte[] wrapEntryRaw(long xid, byte[] data, byte flags) {
         byte[] xmin = Parser.long2Byte(xid);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] next = new byte[8];
+        return Bytes.concat(xmin, xmax, next, new byte[]{flags}, data);
     }
 
     public void release() {
+        if (detached) {
+            dataItem.release();
+            return;
+        }
         ((VersionManagerImpl)vm).releaseEntry(this);
     }
 
@@ -49,9 +98,27 @@ public class Entry {
 
     // 以拷贝的形式返回内容
     public byte[] data() {
+        return data(null);
+    }
+
+    // filter为null或接受内容时返回内容的拷贝，否则返回null
+    // filter直接读取页面中的内容，不能保存或修改传入的SubArray
+    public byte[] data(Predicate<SubArray> filter) {
+        return data(filter, null);
+    }
+
+    // 同上，projection不为null时由它从页面中的内容构造返回值，代替整体拷贝
+    public byte[] data(Predicate<SubArray> filter, Function<SubArray, byte[]> projection) {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
+            SubArray content = new SubArray(sa.raw, sa.start + OF_DATA, sa.end);
+            if (filter != null && !filter.test(content)) {
+                return null;
+            }
+            if (projection != null) {
+                return projection.apply(content);
+            }
             byte[] data = new byte[sa.end - sa.start - OF_DATA];
             System.arraycopy(sa.raw, sa.start + OF_DATA, data, 0, data.length);
             return data;
@@ -74,10 +141,134 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_DATA));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_NEXT));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getNext() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_NEXT, sa.start + OF_DATA));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public boolean isVersion() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return (sa.raw[sa.start + OF_FLAGS] & FLAG_VERSION) != 0;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public boolean isXminCommitted(TransactionManager tm) {
+        return xminState(tm) == HINT_XMIN_COMMITTED;
+    }
+
+    public boolean isXminAborted(TransactionManager tm) {
+        return xminState(tm) == HINT_XMIN_ABORTED;
+    }
+
+    // xmax为调用者读到的XMAX，XMAX已经改变时不使用提示位
+    public boolean isXmaxCommitted(TransactionManager tm, long xmax) {
+        return xmaxState(tm, xmax) == HINT_XMAX_COMMITTED;
+    }
+
+    public boolean isXmaxAborted(TransactionManager tm, long xmax) {
+        return xmaxState(tm, xmax) == HINT_XMAX_INVALID;
+    }
+
+    // 返回XMIN的提示位，事务仍活跃时返回0
+    private byte xminState(TransactionManager tm) {
+        long xmin;
+        byte hint;
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            xmin = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX));
+            hint = (byte) (sa.raw[sa.start + OF_FLAGS] & HINT_XMIN);
+        } finally {
+            dataItem.rUnLock();
+        }
+        if (hint != 0) {
+            return hint;
+        }
+        if (tm.isCommitted(xmin)) {
+            hint = HINT_XMIN_COMMITTED;
+        } else if (tm.isAborted(xmin)) {
+            hint = HINT_XMIN_ABORTED;
+        } else {
+            return 0;
+        }
+        setHint(hint, 0);
+        return hint;
+    }
+
+    private byte xmaxState(TransactionManager tm, long xmax) {
+        byte hint = 0;
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            long cur = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_NEXT));
+            if (cur == xmax) {
+                hint = (byte) (sa.raw[sa.start + OF_FLAGS] & HINT_XMAX);
+            }
         } finally {
             dataItem.rUnLock();
         }
+        if (hint != 0) {
+            return hint;
+        }
+        if (xmax == 0) {
+            return HINT_XMAX_INVALID;
+        }
+        if (tm.isCommitted(xmax)) {
+            hint = HINT_XMAX_COMMITTED;
+        } else if (tm.isAborted(xmax)) {
+            hint = HINT_XMAX_INVALID;
+        } else {
+            return 0;
+        }
+        setHint(hint, xmax);
+        return hint;
+    }
+
+    // XMAX的提示位只在XMAX仍为xmax时写入
+    private void setHint(byte hint, long xmax) {
+        dataItem.lock();
+        try {
+            SubArray sa = dataItem.data();
+            if ((hint & HINT_XMAX) != 0 &&
+                    Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_NEXT)) != xmax) {
+                return;
+            }
+            sa.raw[sa.start + OF_FLAGS] |= hint;
+            dataItem.page().setDirty(true);
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
+    public int dataLength() {
+        SubArray sa = dataItem.data();
+        return sa.end - sa.start - OF_DATA;
+    }
+
+    // 调用者已经把XMAX设为xid
+    public void setNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start + OF_NEXT, 8);
+        } finally {
+            dataItem.after(xid);
+        }
     }
 
     public void setXmax(long xid) {
@@ -85,11 +276,64 @@ public class Entry {
         try {
             SubArray sa = dataItem.data();
             System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start + OF_XMAX, 8);
+            sa.raw[sa.start + OF_FLAGS] &= ~HINT_XMAX;
         } finally {
             dataItem.after(xid);
         }
     }
 
+    // XMAX为0或属于已取消的事务时设为xid并返回xid，否则不修改并返回当前的XMAX
+    // 检查和写入都在DataItem的写锁内完成，并发的写者只有一个能成功
+    public long casXmax(long xid, TransactionManager tm) {
+        dataItem.lock();
+        try {
+            SubArray sa = dataItem.data();
+            long xmax = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_NEXT));
+            boolean invalid = xmax == 0 || (sa.raw[sa.start + OF_FLAGS] & HINT_XMAX_INVALID) != 0;
+            if (!invalid && !tm.isAborted(xmax)) {
+                return xmax;
+            }
+            setXmax(xid);
+            return xid;
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
+    // 清理时使用：NEXT仍为oldNext时改为newNext
+    void relink(long oldNext, long newNext) {
+        dataItem.lock();
+        try {
+            if (getNext() == oldNext) {
+                setNext(TransactionManagerImpl.SUPER_XID, newNext);
+            }
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
+    // 清理时使用：XMAX仍为已取消的xmax且NEXT仍为next时，清除两者，摘掉该事务留下的版本
+    // 与 casXmax 在同一把锁内互斥，不会覆盖新的更新
+    boolean cutAborted(long xmax, long next) {
+        dataItem.lock();
+        try {
+            if (getXmax() != xmax || getNext() != next) {
+                return false;
+            }
+            dataItem.before();
+            try {
+                SubArray sa = dataItem.data();
+                Arrays.fill(sa.raw, sa.start + OF_XMAX, sa.start + OF_FLAGS, (byte) 0);
+                sa.raw[sa.start + OF_FLAGS] &= ~HINT_XMAX;
+            } finally {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            }
+            return true;
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
     public long getUid() {
         return uid;
     }
@@ -1,169 +1,350 @@
 package top.chu.mydb.backend.vm;
 
+import top.chu.mydb.backend.common.PeriodicTask;
 import top.chu.mydb.common.Error;
 
-import java.util.*;
-import java.util.concurrent.locks.Lock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 维护了一个依赖等待图，以进行死锁检测
+ * 行锁管理
+ * 按UID哈希分为若干段，每段一把锁，不同段上的加锁和释放互不影响
+ * 每个UID的等待者按FIFO排队，释放时在段锁内直接把锁交给队首的等待者再唤醒它，被唤醒者无需再竞争
+ * 等待者的状态以CAS从WAITING变为GRANTED或CANCELLED，交接、超时和死锁处理谁先完成CAS谁生效，
+ * 因此取消其他段上的等待者不需要持有那一段的锁
+ * 死锁按DeadlockPolicy处理，检查都在段锁之外进行；等待超过超时时间则放弃并抛出异常
  */
 public class LockTable {
-    private Map<Long, List<Long>> x2u; // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x; // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock; // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU; // XID正在等待的UID
-    private Lock lock;
+    public static final long DEFAULT_TIMEOUT = 10 * 1000;
+    private static final int STRIPES = 64;
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    private static class Waiter {
+        long xid;
+        long uid;
+        Thread thread;
+        AtomicInteger state = new AtomicInteger(WAITING);
+
+        Waiter(long xid, long uid) {
+            this.xid = xid;
+            this.uid = uid;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    private static class RowLock {
+        long owner;
+        ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+        RowLock(long owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static class Stripe {
+        ReentrantLock lock = new ReentrantLock();
+        Map<Long, RowLock> locks = new ConcurrentHashMap<>();
+    }
+
+    private Stripe[] stripes;
+    private Map<Long, Set<Long>> x2u; // 某个XID已经获得的资源的UID
+    private Map<Long, Long> u2x; // UID被某个XID持有，供跨段的死锁检测读取
+    private Map<Long, Waiter> waiting; // XID正在进行的等待，每个XID同时最多等待一个UID
+    private Set<Long> wounded; // 被老事务抢占的XID，再次加锁或正在等待时放弃
+    private long timeout;
+    private DeadlockPolicy policy;
+    private PeriodicTask detector;
+
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
-    }
-
-    // 不需要等待则返回null，否则返回锁对象
-    // 会造成死锁则抛出异常
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+        this(DEFAULT_TIMEOUT, DeadlockPolicy.DETECT);
+    }
+
+    public LockTable(long timeout) {
+        this(timeout, DeadlockPolicy.DETECT);
+    }
+
+    public LockTable(long timeout, DeadlockPolicy policy) {
+        this.timeout = timeout;
+        this.policy = policy;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        x2u = new ConcurrentHashMap<>();
+        u2x = new ConcurrentHashMap<>();
+        waiting = new ConcurrentHashMap<>();
+        wounded = ConcurrentHashMap.newKeySet();
+        if (policy.mode() == DeadlockPolicy.Mode.BACKGROUND) {
+            detector = new PeriodicTask("deadlock-detector", policy.interval(), this::detect);
+            detector.start();
+        }
+    }
+
+    private Stripe stripe(long uid) {
+        int h = Long.hashCode(uid);
+        h ^= h >>> 16;
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    // 获得uid上的锁，必要时等待
+    // 会造成死锁或等待超时则抛出异常
+    public void acquire(long xid, long uid) throws Exception {
+        if (wounded.contains(xid)) {
+            throw Error.DeadlockException;
+        }
+        Stripe s = stripe(uid);
+        Waiter w;
+        List<Long> victims = null;
+        s.lock.lock();
         try {
-            if (isInList(x2u, xid, uid)) {
-                return null;
-            }
-            if (!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
-                return null;
-            }
-            waitU.put(xid, uid);
-            putIntoList(wait, uid, xid);
-            if (hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+            RowLock rl = s.locks.get(uid);
+            if (rl == null) {
+                s.locks.put(uid, new RowLock(xid));
+                hold(xid, uid);
+                return;
+            }
+            if (rl.owner == xid) {
+                return;
+            }
+            if (policy.mode() == DeadlockPolicy.Mode.WAIT_DIE && !olderThanAll(xid, rl)) {
                 throw Error.DeadlockException;
             }
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);
-            return l;
+            if (policy.mode() == DeadlockPolicy.Mode.WOUND_WAIT) {
+                victims = youngerAhead(xid, rl);
+            }
+            w = new Waiter(xid, uid);
+            rl.waiters.addLast(w);
+            waiting.put(xid, w);
         } finally {
-            lock.unlock();
+            s.lock.unlock();
         }
+
+        if (victims != null) {
+            for (long v : victims) {
+                wound(v);
+            }
+        }
+        // 先登记等待再检查，两个同时开始等待的事务至少有一个能看到完整的环
+        if (wounded.contains(xid) || (policy.mode() == DeadlockPolicy.Mode.DETECT && hasDeadLock(xid))) {
+            if (w.state.compareAndSet(WAITING, CANCELLED)) {
+                leave(s, w);
+                throw Error.DeadlockException;
+            }
+        }
+        await(s, w);
     }
 
-    public void remove(long xid) {
-        lock.lock();
-        try {
-            List<Long> l = x2u.get(xid);
-            if (l != null) {
-                while (l.size() > 0) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
+    private void await(Stripe s, Waiter w) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            int st = w.state.get();
+            if (st == GRANTED) {
+                return;
+            }
+            if (st == CANCELLED) {
+                leave(s, w);
+                throw Error.DeadlockException;
+            }
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                if (w.state.compareAndSet(WAITING, CANCELLED)) {
+                    leave(s, w);
+                    throw Error.LockTimeoutException;
                 }
+                continue;
+            }
+            LockSupport.parkNanos(this, nanos);
+            if (Thread.interrupted()) {
+                if (w.state.compareAndSet(WAITING, CANCELLED)) {
+                    leave(s, w);
+                    throw new InterruptedException();
+                }
+                // 已经拿到锁或被取消，保留中断状态
+                Thread.currentThread().interrupt();
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
-        } finally {
-            lock.unlock();
         }
     }
 
-    // 从等待队列中选择一个xid来占用uid
-    public void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> l = wait.get(uid);
-        if (l == null) return;
-        assert l.size() > 0;
+    // 被取消的等待者离开队列
+    private void leave(Stripe s, Waiter w) {
+        s.lock.lock();
+        try {
+            RowLock rl = s.locks.get(w.uid);
+            if (rl != null) {
+                rl.waiters.remove(w);
+            }
+        } finally {
+            s.lock.unlock();
+        }
+        waiting.remove(w.xid, w);
+    }
 
-        while (l.size() > 0) {
-            Long xid = l.remove(0);
-            if (!waitLock.containsKey(xid)) {
+    private void hold(long xid, long uid) {
+        u2x.put(uid, xid);
+        x2u.computeIfAbsent(xid, k -> ConcurrentHashMap.newKeySet()).add(uid);
+    }
 
-            } else {
-                u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                lo.unlock();
-                break;
+    // 释放xid持有的所有锁
+    public void remove(long xid) {
+        wounded.remove(xid);
+        Set<Long> uids = x2u.remove(xid);
+        if (uids == null) return;
+        for (long uid : uids) {
+            Stripe s = stripe(uid);
+            s.lock.lock();
+            try {
+                RowLock rl = s.locks.get(uid);
+                if (rl == null || rl.owner != xid) continue;
+                selectNewXID(s, rl, uid);
+            } finally {
+                s.lock.unlock();
             }
         }
+    }
 
-        if (l.size() == 0) wait.remove(uid);
+    // holder没有经过锁表就写入了uid（隐式锁），由想要等待它的xid替它登记
+    // xid自己持有该锁时说明holder抢先写入，锁转给holder
+    // 登记后调用者须再检查holder是否已经结束，已结束则调用unlockImplicit
+    public void lockImplicit(long holder, long uid, long xid) {
+        Stripe s = stripe(uid);
+        s.lock.lock();
+        try {
+            RowLock rl = s.locks.get(uid);
+            if (rl == null) {
+                s.locks.put(uid, new RowLock(holder));
+                hold(holder, uid);
+            } else if (rl.owner == xid) {
+                Set<Long> held = x2u.get(xid);
+                if (held != null) {
+                    held.remove(uid);
+                }
+                rl.owner = holder;
+                hold(holder, uid);
+            }
+        } finally {
+            s.lock.unlock();
+        }
     }
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    // 替已经结束的holder释放lockImplicit登记的锁
+    public void unlockImplicit(long holder, long uid) {
+        Stripe s = stripe(uid);
+        s.lock.lock();
+        try {
+            x2u.computeIfPresent(holder, (k, held) -> {
+                held.remove(uid);
+                return held.isEmpty() ? null : held;
+            });
+            RowLock rl = s.locks.get(uid);
+            if (rl != null && rl.owner == holder) {
+                selectNewXID(s, rl, uid);
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
 
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for (long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if (s != null && s > 0) {
-                continue;
+    // 把uid交给队首仍在等待的事务，没有等待者时删除该锁
+    private void selectNewXID(Stripe s, RowLock rl, long uid) {
+        Waiter w;
+        while ((w = rl.waiters.pollFirst()) != null) {
+            // 先登记持有再发布GRANTED，等待者返回后立即释放也能找到这把锁
+            hold(w.xid, uid);
+            if (w.state.compareAndSet(WAITING, GRANTED)) {
+                rl.owner = w.xid;
+                waiting.remove(w.xid, w);
+                LockSupport.unpark(w.thread);
+                return;
             }
-            stamp++;
-            if (dfs(xid)) {
-                return true;
+            // 已被取消，它在离开队列前需要本段的锁，此时还不会释放自己的锁
+            Set<Long> held = x2u.get(w.xid);
+            if (held != null) {
+                held.remove(uid);
             }
         }
-        return false;
+        s.locks.remove(uid);
+        u2x.remove(uid);
     }
 
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if (stp != null && stp == stamp) { // 说明访问到了之前访问过的节点，出现了环
-            return true;
-        }
-        if (stp != null && stp < stamp) { // 说明访问到了之前访问过的节点，并且之前没有发现死锁，可以直接返回
-            return false;
+    private boolean olderThanAll(long xid, RowLock rl) {
+        if (xid > rl.owner) return false;
+        for (Waiter w : rl.waiters) {
+            if (w.state.get() == WAITING && xid > w.xid) return false;
         }
-        xidStamp.put(xid, stamp);
-
-        Long uid = waitU.get(xid);
-        if (uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+        return true;
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            Long e = i.next();
-            if (e == uid1) {
-                i.remove();
-                break;
+    private List<Long> youngerAhead(long xid, RowLock rl) {
+        List<Long> victims = new ArrayList<>();
+        if (rl.owner > xid) {
+            victims.add(rl.owner);
+        }
+        for (Waiter w : rl.waiters) {
+            if (w.state.get() == WAITING && w.xid > xid) {
+                victims.add(w.xid);
             }
         }
-        if (l.size() == 0) {
-            listMap.remove(uid0);
+        return victims;
+    }
+
+    // 年轻事务被抢占：正在等待则立即取消，否则在下一次加锁时放弃
+    private void wound(long xid) {
+        wounded.add(xid);
+        cancel(waiting.get(xid));
+    }
+
+    private void cancel(Waiter w) {
+        if (w != null && w.state.compareAndSet(WAITING, CANCELLED)) {
+            LockSupport.unpark(w.thread);
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if (!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    // 沿 xid -> 等待的uid -> 持有者 的路径前进，回到xid则有死锁
+    private boolean hasDeadLock(long xid) {
+        return cycleVictim(xid) >= 0;
+    }
+
+    // 从xid出发的等待路径回到xid时返回环上最年轻的事务，否则返回-1
+    private long cycleVictim(long xid) {
+        long victim = xid;
+        long x = xid;
+        // 并发修改下路径可能暂时成环但不经过xid，限制步数避免死循环
+        for (int steps = waiting.size() + 1; steps > 0; steps--) {
+            Waiter w = waiting.get(x);
+            if (w == null || w.state.get() != WAITING) return -1;
+            Long owner = u2x.get(w.uid);
+            if (owner == null) return -1;
+            if (owner == xid) return victim;
+            victim = Math.max(victim, owner);
+            x = owner;
         }
-        listMap.get(uid0).add(0, uid1);
+        return -1;
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            long e = i.next();
-            if (e == uid1) {
-                return true;
+    // 后台检查所有等待者
+    private void detect() {
+        for (long xid : waiting.keySet()) {
+            long victim = cycleVictim(xid);
+            if (victim >= 0) {
+                cancel(waiting.get(victim));
             }
         }
-        return false;
+    }
+
+    public void close() {
+        if (detector != null) {
+            detector.stop();
+        }
     }
 }
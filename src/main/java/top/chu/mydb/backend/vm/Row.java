@@ -0,0 +1,12 @@
+package top.chu.mydb.backend.vm;
+
+// 扫描得到的一行，uid为行首的UID
+public class Row {
+    public final long uid;
+    public final byte[] data;
+
+    public Row(long uid, byte[] data) {
+        this.uid = uid;
+        this.data = data;
+    }
+}
@@ -0,0 +1,91 @@
+package top.chu.mydb.backend.vm;
+
+import top.chu.mydb.backend.common.SubArray;
+import top.chu.mydb.backend.dm.PageScanner;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
+
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 顺序扫描事务可见的所有行
+ * 按页号顺序处理数据页，跳过版本和无效的数据项，从每个行首沿版本链找到可见的版本
+ * 当前页由PageScanner固定，行首的数据项从已固定的页中解析，不经过entry缓存；
+ * 数据项仍从DM缓存取得，数据项的锁在缓存中的唯一实例上；filter在拷贝内容之前对页中的内容求值，
+ * projection不为null时由它从页中的内容构造data()，代替整体拷贝
+ * 用法：while (scanner.next()) { scanner.uid(); scanner.data(); }，结束后调用close
+ */
+public class RowScanner implements AutoCloseable {
+    private VersionManagerImpl vm;
+    private Transaction t;
+    private Predicate<SubArray> filter;
+    private Function<SubArray, byte[]> projection;
+    private PageScanner pages;
+    private Iterator<Long> items;
+    private long uid;
+    private byte[] data;
+
+    RowScanner(VersionManagerImpl vm, Transaction t, Predicate<SubArray> filter, PageScanner pages) {
+        this(vm, t, filter, null, pages);
+    }
+
+    RowScanner(VersionManagerImpl vm, Transaction t, Predicate<SubArray> filter, Function<SubArray, byte[]> projection, PageScanner pages) {
+        this.vm = vm;
+        this.t = t;
+        this.filter = filter;
+        this.projection = projection;
+        this.pages = pages;
+    }
+
+    // 前进到下一个满足条件的行，没有更多的行时返回false
+    public boolean next() throws Exception {
+        if (t.err != null) {
+            throw t.err;
+        }
+        while (true) {
+            if (items == null || !items.hasNext()) {
+                if (!pages.next()) {
+                    return false;
+                }
+                items = pages.items().iterator();
+                continue;
+            }
+            long u = items.next();
+            DataItem di = vm.dm.read(u);
+            if (di == null) continue;
+            Entry head = Entry.newDetachedEntry(vm, di, u);
+            if (head.isVersion()) {
+                head.release();
+                continue;
+            }
+            Entry entry = vm.visibleVersion(t, head);
+            if (entry == null) continue;
+            byte[] d;
+            try {
+                d = entry.data(filter, projection);
+            } finally {
+                entry.release();
+            }
+            if (d != null) {
+                uid = u;
+                data = d;
+                return true;
+            }
+        }
+    }
+
+    // 当前行的UID，即行首的UID
+    public long uid() {
+        return uid;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    @Override
+    public void close() {
+        pages.close();
+    }
+}
@@ -0,0 +1,49 @@
+package top.chu.mydb.backend.vm;
+
+import top.chu.mydb.backend.tm.TransactionManagerImpl;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * 事务开始时的快照
+ * xmax 快照建立时尚未分配的最小xid，不小于xmax的事务都视为进行中
+ * xip 快照建立时进行中且小于xmax的事务，升序排列
+ * xmin xip中最小的xid，没有进行中的事务时等于xmax，小于xmin的事务都已结束
+ * 快照建立之后没有事务结束时，之后开始的事务可以共用同一个快照：
+ * 期间新开始的事务都不小于xmax，仍然视为进行中
+ */
+public class Snapshot {
+    final long xmin;
+    final long xmax;
+    final long[] xip;
+    final long version; // 建立快照时事务结束的次数
+
+    private Snapshot(long xmin, long xmax, long[] xip, long version) {
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.xip = xip;
+        this.version = version;
+    }
+
+    public static Snapshot build(Collection<Long> active, long xmax, long version) {
+        long[] xip = new long[active.size()];
+        int n = 0;
+        for (long xid : active) {
+            // 跳过超级事务和只读事务的虚拟xid
+            if (xid > TransactionManagerImpl.SUPER_XID && xid < xmax && n < xip.length) {
+                xip[n++] = xid;
+            }
+        }
+        xip = Arrays.copyOf(xip, n);
+        Arrays.sort(xip);
+        return new Snapshot(n == 0 ? xmax : xip[0], xmax, xip, version);
+    }
+
+    // xid在快照建立时是否仍在进行中
+    public boolean isInProgress(long xid) {
+        if (xid < xmin) return false;
+        if (xid >= xmax) return true;
+        return Arrays.binarySearch(xip, xid) >= 0;
+    }
+}
@@ -1,35 +1,32 @@
 package top.chu.mydb.backend.vm;
 
+import top.chu.mydb.backend.common.Durability;
 import top.chu.mydb.backend.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
-
 // vm对一个事务的抽象
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public Snapshot snapshot;
     public Exception err;
     public boolean autoAborted;
+    public Durability durability;
+    public boolean readOnly; // 只读事务的xid是不在TM中分配的虚拟xid
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, Snapshot snapshot) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if (level != 0) {
-            t.snapshot = new HashMap<>();
-            for (Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = snapshot;
         }
         return t;
     }
 
     public boolean isInSnapshot(long xid) {
-        if (xid == TransactionManagerImpl.SUPER_XID) {
+        if (xid == TransactionManagerImpl.SUPER_XID || xid == this.xid) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        return snapshot.isInProgress(xid);
     }
 }
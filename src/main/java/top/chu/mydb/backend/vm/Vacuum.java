@@ -0,0 +1,200 @@
+package top.chu.mydb.backend.vm;
+
+import top.chu.mydb.backend.common.PeriodicTask;
+import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.tm.TransactionManager;
+import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.common.Error;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台清理已死的版本
+ * 一轮清理按页号依次处理所有数据页，每隔INTERVAL毫秒最多处理PAGES_PER_RUN页，限制对前台的IO影响
+ * 处理一页时：
+ * 1. 断链：以本轮开始时的快照边界为准，把已死的行首之后已死的版本从链上摘下，摘掉取消的更新留下的版本
+ * 2. 回收：以上一轮的快照边界为准，回收已死的版本，把已死的行首截短到只剩头部
+ *    行首的UID可能仍被上层引用，因此只截短不回收
+ *    上一轮结束时按它的边界已死的版本都已断链，但断链前开始的事务可能还持有旧的链接，
+ *    所以等上一轮结束后活跃过的事务都结束后才回收，只读事务按开始的序号同样等待
+ * 已死：XMIN已取消，或XMAX在快照边界之前提交；回收通过DM写日志，空出的空间交还空闲空间索引
+ * 每轮结束时冻结已结束事务的状态
+ */
+class Vacuum {
+    static final long INTERVAL = 1000;
+    static final int PAGES_PER_RUN = 64;
+    private static final int FIRST_PGNO = 2;
+
+    private VersionManagerImpl vm;
+    private TransactionManager tm;
+    private DataManager dm;
+    private PeriodicTask task;
+    private Lock lock; // 后台清理和手动清理互斥
+
+    private int nextPgno = FIRST_PGNO;
+    private long horizon; // 本轮的快照边界
+    private boolean passed; // 是否完成过一轮
+    private long lastHorizon; // 上一轮的快照边界
+    private long lastEnd; // 上一轮结束时的nextXid
+    private long lastReadOnlyEnd; // 上一轮结束时的nextReadOnly
+
+    Vacuum(VersionManagerImpl vm) {
+        this.vm = vm;
+        this.tm = vm.tm;
+        this.dm = vm.dm;
+        this.lock = new ReentrantLock();
+        this.task = new PeriodicTask("vacuum", INTERVAL, () -> run(PAGES_PER_RUN));
+    }
+
+    void start() {
+        task.start();
+    }
+
+    void stop() {
+        task.stop();
+    }
+
+    // 完成当前这一轮
+    void vacuum() {
+        while (!run(Integer.MAX_VALUE)) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 最多处理n页，返回这一轮是否已经结束
+    // 缓存已满时停在当前页，之后重新处理它：跳过会破坏下一轮回收依赖的断链，重复处理一页是安全的
+    private boolean run(int n) {
+        lock.lock();
+        try {
+            if (nextPgno == FIRST_PGNO) {
+                horizon = vm.snapshotHorizon();
+            }
+            boolean reclaim = passed && vm.xidHorizon() >= lastEnd && vm.readOnlyHorizon() >= lastReadOnlyEnd;
+            int pages = dm.pageCount();
+            for (; n > 0 && nextPgno <= pages; n--, nextPgno++) {
+                try {
+                    vacuumPage(nextPgno, reclaim);
+                } catch (Exception e) {
+                    if (e != Error.CacheFullException) {
+                        throw e;
+                    }
+                    return false;
+                }
+            }
+            if (nextPgno <= pages) {
+                return false;
+            }
+            passed = true;
+            lastHorizon = horizon;
+            lastEnd = vm.nextXid();
+            lastReadOnlyEnd = vm.nextReadOnly();
+            nextPgno = FIRST_PGNO;
+        } catch (Exception e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+        vm.freeze();
+        return true;
+    }
+
+    private void vacuumPage(int pgno, boolean reclaim) throws Exception {
+        List<Long> uids = dm.validItems(pgno);
+        for (long uid : uids) {
+            Entry entry = vm.getEntry(uid);
+            if (entry == null) continue;
+            boolean version = entry.isVersion();
+            boolean free = false;
+            boolean truncate = false;
+            try {
+                if (reclaim && version) {
+                    free = isReclaimable(entry);
+                } else if (reclaim && entry.dataLength() > 0 && isDead(entry, lastHorizon)) {
+                    truncate = true;
+                }
+                if (!version) {
+                    prune(entry);
+                }
+            } finally {
+                entry.release();
+            }
+            if (free) {
+                dm.free(uid);
+            } else if (truncate) {
+                dm.truncate(uid, Entry.HEADER_LENGTH);
+            }
+        }
+    }
+
+    // 上一轮结束时已经断链的版本：它和它之前的版本都已死
+    private boolean isReclaimable(Entry e) {
+        long xmin = e.getXmin();
+        if (xmin >= lastHorizon) return false;
+        if (e.isXminAborted(tm)) return true;
+        long xmax = e.getXmax();
+        return xmax != 0 && xmax < lastHorizon && e.isXmaxCommitted(tm, xmax);
+    }
+
+    private boolean isDead(Entry e, long horizon) {
+        if (e.isXminAborted(tm)) return true;
+        long xmax = e.getXmax();
+        return xmax != 0 && xmax < horizon && e.isXmaxCommitted(tm, xmax);
+    }
+
+    // 处理以head为行首的版本链
+    private void prune(Entry head) throws Exception {
+        long next = head.getNext();
+        if (next == 0) return;
+
+        Entry v = head;
+        if (isDead(head, horizon)) {
+            // 已死的版本之后的版本由XMAX已提交的事务写入，XMAX提交在边界之前的版本都已死
+            long live = next;
+            while (live != 0) {
+                Entry e = vm.getEntry(live);
+                if (e == null) break;
+                boolean dead = isDead(e, horizon);
+                long n = e.getNext();
+                if (!dead) {
+                    v = e;
+                    break;
+                }
+                e.release();
+                live = n;
+            }
+            if (live != next) {
+                head.relink(next, live);
+            }
+            if (live == 0 || v == head) return;
+        }
+
+        // 沿有效的版本找到已取消的更新留下的版本
+        try {
+            while (true) {
+                long xmax = v.getXmax();
+                long n = v.getNext();
+                if (n == 0) break;
+                if (xmax != 0 && v.isXmaxAborted(tm, xmax)) {
+                    v.cutAborted(xmax, n);
+                    break;
+                }
+                Entry e = vm.getEntry(n);
+                if (v != head) {
+                    v.release();
+                }
+                v = e;
+                if (v == null) break;
+            }
+        } finally {
+            if (v != null && v != head) {
+                v.release();
+            }
+        }
+    }
+}
@@ -1,18 +1,43 @@
 package top.chu.mydb.backend.vm;
 
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.common.SubArray;
 import top.chu.mydb.backend.dm.DataManager;
 import top.chu.mydb.backend.tm.TransactionManager;
 
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
+
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    byte[][] readMany(long xid, long[] uids) throws Exception; // 结果与uids一一对应，不可见的为null
+    RowScanner scan(long xid, Predicate<SubArray> filter) throws Exception; // 顺序扫描xid可见的所有行，filter可为null
+    RowScanner scan(long xid, Predicate<SubArray> filter, Function<SubArray, byte[]> projection) throws Exception; // 由projection从页中构造每行的结果
+    <A, R> R parallelScan(long xid, Predicate<SubArray> filter, Collector<Row, A, R> collector, int parallelism) throws Exception; // 多线程扫描，行的顺序不确定
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    boolean update(long xid, long uid, byte[] data) throws Exception; // 行的UID保持不变
 
     long begin(int level);
+    long begin(int level, Durability durability); // 以指定的持久化策略提交的事务
+    long beginReadOnly(int level); // 只读事务，开始和结束都不读写TM，写入时抛出异常
     void commit(long xid) throws Exception;
     void abort(long xid);
+    void freeze(); // 冻结已结束事务的状态，截断XID文件
+    void vacuum(); // 立即完成一轮清理
+    void close();
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm ,dm);
     }
+
+    // lockTimeout 等待行锁的最长时间，单位毫秒
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, long lockTimeout) {
+        return new VersionManagerImpl(tm, dm, lockTimeout, DeadlockPolicy.DETECT);
+    }
+
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, long lockTimeout, DeadlockPolicy policy) {
+        return new VersionManagerImpl(tm, dm, lockTimeout, policy);
+    }
 }
@@ -1,32 +1,65 @@
 package top.chu.mydb.backend.vm;
 
 import top.chu.mydb.backend.common.AbstractCache;
+import top.chu.mydb.backend.common.Durability;
+import top.chu.mydb.backend.common.SubArray;
 import top.chu.mydb.backend.dm.DataManager;
+import top.chu.mydb.backend.dm.dataItem.DataItem;
 import top.chu.mydb.backend.tm.TransactionManager;
 import top.chu.mydb.backend.tm.TransactionManagerImpl;
 import top.chu.mydb.backend.utils.Panic;
+import top.chu.mydb.backend.utils.Types;
 import top.chu.mydb.common.Error;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
+    static final int MORSEL_PAGES = 16; // 并行扫描时每个线程一次领取的页数
+    private static final int FIRST_DATA_PGNO = 2;
+
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
-    Lock lock;
+    Lock lock; // 开始事务时持有，保证建立快照时所有已分配的xid都已登记
+    long nextXid; // 已分配的xid都小于nextXid
+    long readOnlySeq; // 已开始的只读事务数，第n个只读事务的虚拟xid为-n
+    AtomicLong endVersion; // 事务结束的次数，快照建立后没有事务结束时可以共用
+    volatile Snapshot snapshot; // 最近建立的快照
     LockTable lt;
+    Vacuum vacuum;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this(tm, dm, LockTable.DEFAULT_TIMEOUT, DeadlockPolicy.DETECT);
+    }
+
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, long lockTimeout, DeadlockPolicy policy) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        this.endVersion = new AtomicLong();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
-        this.lt = new LockTable();
+        this.nextXid = tm.maxXid() + 1;
+        this.lt = new LockTable(lockTimeout, policy);
+        this.vacuum = new Vacuum(this);
+        vacuum.start();
     }
 
     @Override
@@ -45,44 +78,166 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) {
             throw t.err;
         }
 
-        Entry entry = null;
+        Entry entry = visibleVersion(t, uid);
+        if (entry == null) {
+            return null;
+        }
         try {
-            entry = super.get(uid);
-        } catch (Exception e) {
-            if (e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 按UID排序后每次处理readBatchPages个页上的行：
+    // 先由DM批量载入这些行首的数据项并持有它们，再直接在这些数据项上判断可见性，不再经过entry缓存
+    @Override
+    public byte[][] readMany(long xid, long[] uids) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        Integer[] order = new Integer[uids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(uids[a], uids[b]));
+
+        byte[][] result = new byte[uids.length][];
+        int start = 0;
+        while (start < order.length) {
+            int end = start;
+            int pages = 0;
+            int lastPgno = -1;
+            for (; end < order.length; end++) {
+                int pgno = Types.uidToPgno(uids[order[end]]);
+                if (pgno != lastPgno) {
+                    if (pages == dm.readBatchPages()) break;
+                    pages++;
+                    lastPgno = pgno;
+                }
+            }
+            long[] batch = new long[end - start];
+            for (int i = start; i < end; i++) {
+                batch[i - start] = uids[order[i]];
             }
+            DataItem[] heads = dm.readMany(batch);
+            try {
+                for (int i = 0; i < batch.length; i++) {
+                    if (heads[i] == null) continue;
+                    Entry head = Entry.newDetachedEntry(this, heads[i], batch[i]);
+                    heads[i] = null;
+                    Entry entry = visibleVersion(t, head);
+                    if (entry == null) continue;
+                    try {
+                        result[order[start + i]] = entry.data();
+                    } finally {
+                        entry.release();
+                    }
+                }
+            } finally {
+                for (DataItem di : heads) {
+                    if (di != null) {
+                        di.release();
+                    }
+                }
+            }
+            start = end;
+        }
+        return result;
+    }
+
+    @Override
+    public RowScanner scan(long xid, Predicate<SubArray> filter) throws Exception {
+        return scan(xid, filter, null);
+    }
+
+    @Override
+    public RowScanner scan(long xid, Predicate<SubArray> filter, Function<SubArray, byte[]> projection) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if (t.err != null) {
+            throw t.err;
         }
+
+        return new RowScanner(this, t, filter, projection, dm.scan());
+    }
+
+    // 页号范围按MORSEL_PAGES页切分，parallelism个线程依次领取下一段，各自读取、判断可见性并过滤，
+    // 结果累积到各自的容器中，最后用collector合并
+    // 所有线程使用同一个事务和快照；只扫描开始时已有的页
+    @Override
+    public <A, R> R parallelScan(long xid, Predicate<SubArray> filter, Collector<Row, A, R> collector, int parallelism) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        parallelism = Math.max(parallelism, 1);
+        int pages = dm.pageCount();
+        AtomicInteger nextPgno = new AtomicInteger(FIRST_DATA_PGNO);
+        AtomicBoolean failed = new AtomicBoolean();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread th = new Thread(r, "parallel-scan");
+            th.setDaemon(true);
+            return th;
+        });
         try {
-            if (Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
+            List<Future<A>> parts = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++) {
+                parts.add(workers.submit(() -> {
+                    A acc = collector.supplier().get();
+                    while (!failed.get()) {
+                        int first = nextPgno.getAndAdd(MORSEL_PAGES);
+                        if (first > pages) break;
+                        int last = Math.min(first + MORSEL_PAGES - 1, pages);
+                        try (RowScanner rs = new RowScanner(this, t, filter, dm.scan(first, last))) {
+                            while (rs.next()) {
+                                collector.accumulator().accept(acc, new Row(rs.uid(), rs.data()));
+                            }
+                        } catch (Exception e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                    return acc;
+                }));
+            }
+            A result = null;
+            for (Future<A> f : parts) {
+                A part;
+                try {
+                    part = f.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                result = result == null ? part : collector.combiner().apply(result, part);
             }
+            return collector.finisher().apply(result);
         } finally {
-            entry.release();
+            workers.shutdown();
         }
     }
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) {
             throw t.err;
         }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
         return dm.insert(xid, raw);
@@ -90,67 +245,183 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+
+        Entry entry = lockVisibleVersion(t, uid);
+        if (entry == null) {
+            return false;
+        }
+        entry.release();
+        return true;
+    }
+
+    // 新版本链在t可见的版本之后，行的UID不变
+    @Override
+    public boolean update(long xid, long uid, byte[] data) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if (t.err != null) {
+            throw t.err;
+        }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+
+        Entry entry = lockVisibleVersion(t, uid);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            long next = dm.insert(xid, Entry.wrapVersionRaw(xid, data));
+            entry.setNext(xid, next);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 数据项不存在时返回null
+    Entry getEntry(long uid) throws Exception {
+        // 页号从1开始，UID 0不对应任何数据项，表示版本链的结尾
+        if (uid == 0) {
+            return null;
+        }
         try {
-            entry = super.get(xid);
+            return super.get(uid);
         } catch (Exception e) {
             if (e == Error.NullEntryException) {
-                return false;
+                return null;
             } else {
                 throw e;
             }
         }
+    }
 
-        try {
-            if (!Visibility.isVisible(tm, t, entry)) {
-                return false;
+    // 从uid开始沿版本链找到t可见的版本，没有时返回null
+    private Entry visibleVersion(Transaction t, long uid) throws Exception {
+        Entry entry = getEntry(uid);
+        if (entry == null) {
+            return null;
+        }
+        return visibleVersion(t, entry);
+    }
+
+    // 从entry开始沿版本链查找，entry的引用交给本方法
+    Entry visibleVersion(Transaction t, Entry entry) throws Exception {
+        while (true) {
+            if (Visibility.isVisible(tm, t, entry)) {
+                return entry;
             }
-            Lock l = null;
-            try {
-                l = lt.add(xid, uid);
-            } catch (Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+            long next = entry.getNext();
+            entry.release();
+            if (next == 0) {
+                return null;
             }
-            if (l != null) {
-                l.lock();
-                l.unlock();
+            entry = getEntry(next);
+            if (entry == null) {
+                return null;
             }
+        }
+    }
 
-            if (entry.getXmax() == xid) {
-                return false;
+    // 找到t可见的版本并把它的XMAX设为t，行不存在或已被删除时返回null
+    private Entry lockVisibleVersion(Transaction t, long uid) throws Exception {
+        long xid = t.xid;
+        Entry entry = visibleVersion(t, uid);
+        while (entry != null) {
+            // XMAX为0或属于已取消的事务时直接写入，不经过锁表
+            long xmax = entry.casXmax(xid, tm);
+            if (xmax == xid) {
+                return entry;
+            }
+            if (entry.isXmaxCommitted(tm, xmax)) {
+                boolean skip = Visibility.isVersionSkip(tm, t, entry);
+                long next = entry.getNext();
+                entry.release();
+                if (skip) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
+                // 读已提交时继续处理更新后的版本，没有更新的版本说明行已被删除
+                entry = t.level == 0 && next != 0 ? visibleVersion(t, next) : null;
+                continue;
             }
 
-            if (Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
+            // XMAX属于活跃事务，替它在锁表中登记后排队等它结束
+            long vuid = entry.getUid();
+            lt.lockImplicit(xmax, vuid, xid);
+            if (!tm.isActive(xmax)) {
+                lt.unlockImplicit(xmax, vuid);
+            }
+            try {
+                lt.acquire(xid, vuid);
+            } catch (Exception e) {
+                entry.release();
+                // 死锁或被老事务抢占视为并发更新冲突，等待超时则如实报告
+                t.err = e == Error.LockTimeoutException ? e : Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
+        }
+        return null;
+    }
 
-            entry.setXmax(xid);
-            return true;
+    @Override
+    public long begin(int level) {
+        return begin(level, tm.durability());
+    }
 
+    @Override
+    public long begin(int level, Durability durability) {
+        lock.lock();
+        try {
+            long xid = tm.begin();
+            Snapshot s = null;
+            if (level != 0) {
+                s = snapshot;
+                if (s == null || s.version != endVersion.get()) {
+                    // 先读版本再扫描，扫描期间结束的事务会使该快照在下一次开始时失效
+                    s = Snapshot.build(activeTransaction.keySet(), xid, endVersion.get());
+                    snapshot = s;
+                }
+            }
+            Transaction t = Transaction.newTransaction(xid, level, s);
+            t.durability = durability;
+            activeTransaction.put(xid, t);
+            nextXid = Math.max(nextXid, xid + 1);
+            return xid;
         } finally {
-            entry.release();
+            lock.unlock();
         }
     }
 
+    // 虚拟xid为负数，不与TM分配的xid冲突，也不会出现在XMIN、XMAX中
+    // 快照与普通事务共用；只读事务结束不影响可见性，不使共用的快照失效
     @Override
-    public long begin(int level) {
+    public long beginReadOnly(int level) {
         lock.lock();
         try {
-            long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            long xid = -(++readOnlySeq);
+            Snapshot s = null;
+            if (level != 0) {
+                s = snapshot;
+                if (s == null || s.version != endVersion.get()) {
+                    s = Snapshot.build(activeTransaction.keySet(), nextXid, endVersion.get());
+                    snapshot = s;
+                }
+            }
+            Transaction t = Transaction.newTransaction(xid, level, s);
+            t.readOnly = true;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -160,9 +431,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if (t.err != null) {
@@ -174,12 +443,18 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(e);
         }
 
-        lock.lock();
+        if (t.readOnly) {
+            activeTransaction.remove(xid);
+            return;
+        }
+
+        // 提交日志按事务的持久化策略落盘后才对其他事务可见
+        dm.commit(xid, t.durability);
+
         activeTransaction.remove(xid);
-        lock.unlock();
+        endVersion.incrementAndGet();
 
         lt.remove(xid);
-        tm.commit(xid);
     }
 
     @Override
@@ -188,16 +463,110 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
+        if (t.readOnly) {
+            activeTransaction.remove(xid);
+            return;
+        }
         if (!autoAborted) {
             activeTransaction.remove(xid);
+            endVersion.incrementAndGet();
         }
-        lock.unlock();
 
         if (t.autoAborted) return;
+        // 先标记取消再释放锁，替它登记隐式锁的事务检查状态时不会把它当作仍然活跃
+        dm.abort(xid);
         lt.remove(xid);
-        tm.abort(xid);
+    }
+
+    // 冻结比所有活跃事务都早的事务状态
+    @Override
+    public void freeze() {
+        tm.freeze(xidHorizon());
+    }
+
+    @Override
+    public void vacuum() {
+        vacuum.vacuum();
+    }
+
+    // 本次运行中此后开始的事务的xid都不小于它
+    long nextXid() {
+        lock.lock();
+        try {
+            return nextXid;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 最早的活跃事务的xid，没有活跃事务时为nextXid，不含只读事务
+    long xidHorizon() {
+        lock.lock();
+        try {
+            long horizon = nextXid;
+            for (long xid : activeTransaction.keySet()) {
+                if (xid > TransactionManagerImpl.SUPER_XID) {
+                    horizon = Math.min(horizon, xid);
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 此后开始的只读事务的序号都不小于它
+    long nextReadOnly() {
+        lock.lock();
+        try {
+            return readOnlySeq + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 最早的活跃只读事务的序号，没有时为nextReadOnly
+    long readOnlyHorizon() {
+        lock.lock();
+        try {
+            long horizon = readOnlySeq + 1;
+            for (long xid : activeTransaction.keySet()) {
+                if (xid < TransactionManagerImpl.SUPER_XID) {
+                    horizon = Math.min(horizon, -xid);
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 快照边界：小于它的事务对所有活跃事务和此后开始的事务都已结束，
+    // 在它之前提交的删除对所有事务都生效
+    long snapshotHorizon() {
+        lock.lock();
+        try {
+            long horizon = nextXid;
+            for (Transaction t : activeTransaction.values()) {
+                if (t.xid == TransactionManagerImpl.SUPER_XID) continue;
+                if (t.snapshot != null) {
+                    horizon = Math.min(horizon, t.snapshot.xmin);
+                } else if (!t.readOnly) {
+                    // 只读的读已提交事务总是读最新的已提交版本，不限制边界
+                    horizon = Math.min(horizon, t.xid);
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        vacuum.stop();
+        lt.close();
     }
 
     public void releaseEntry(Entry entry) {
@@ -2,6 +2,9 @@ package top.chu.mydb.backend.vm;
 
 import top.chu.mydb.backend.tm.TransactionManager;
 
+/**
+ * XMIN、XMAX所属事务的状态通过Entry的提示位查询，提示位未设置时才查询TM
+ */
 public class Visibility {
 
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
@@ -9,7 +12,7 @@ public class Visibility {
         if (t.level == 0) {
             return false;
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            return e.isXmaxCommitted(tm, xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
         }
     }
 
@@ -27,10 +30,10 @@ public class Visibility {
         long xmax = e.getXmax();
         if (xmin == xid && xmax == 0) return true;
 
-        if (tm.isCommitted(xmin)) {
+        if (e.isXminCommitted(tm)) {
             if (xmax == 0) return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax)) {
+                if (!e.isXmaxCommitted(tm, xmax)) {
                     return true;
                 }
             }
@@ -38,16 +41,17 @@ public class Visibility {
         return false;
     }
 
+    // 快照的xmax不大于事务的xid，比xid新的事务都视为进行中；只读事务的虚拟xid只能靠快照判断
     private static boolean repeatableRead(TransactionManager tm, Transaction t, Entry e) {
         long xid = t.xid;
         long xmin = e.getXmin();
         long xmax = e.getXmax();
         if (xmin == xid && xmax == 0) return true;
 
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if (xmin != xid && !t.isInSnapshot(xmin) && e.isXminCommitted(tm)) {
             if (xmax == 0) return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if (t.isInSnapshot(xmax) || !e.isXmaxCommitted(tm, xmax)) {
                     return true;
                 }
             }
@@ -17,13 +17,33 @@ public class Error {
 
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
 
+    public static final Exception BadDbFileException = new RuntimeException("Bad db file or unsupported page format!");
+
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
 
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
 
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
 
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
+
     public static final Exception NullEntryException = new RuntimeException("Null entry");
 
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
+
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Read-only transaction cannot write!");
+
+    // im
+    public static final Exception UnsortedKeyException = new RuntimeException("Bulk load keys are not sorted!");
+
+    // tbm
+    public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
+
+    public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+
+    public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
+
+    public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
+
+    public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
 }